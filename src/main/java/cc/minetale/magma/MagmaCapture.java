@@ -0,0 +1,207 @@
+package cc.minetale.magma;
+
+import cc.minetale.magma.palette.BiomePalette;
+import cc.minetale.magma.palette.MaterialPalette;
+import cc.minetale.magma.type.MagmaChunk;
+import cc.minetale.magma.type.MagmaRegion;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import lombok.Getter;
+import lombok.Setter;
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.coordinate.Vec;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.timer.Task;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import net.minestom.server.utils.time.TimeUnit;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Captures an area of an instance into a region. Every tick chunk loads are started until the tick's time budget runs out
+ * or {@linkplain #getInFlight()} chunks are loading or encoding at once, at least one is started per tick if there's room. Loaded chunks are encoded on the executor
+ * while the next ones load. A capture can only be started once.
+ */
+public class MagmaCapture {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MagmaCapture.class);
+
+    public static final int DEFAULT_IN_FLIGHT = 64;
+    public static final Duration DEFAULT_TICK_BUDGET = Duration.ofMillis(5);
+
+    @Getter private final Instance instance;
+
+    @Getter private final int lowestX;
+    @Getter private final int lowestZ;
+    @Getter private final int xSize;
+    @Getter private final int zSize;
+
+    @Getter @Setter private int inFlight = DEFAULT_IN_FLIGHT; //Chunks that can be loading or encoding at once
+    @Getter @Setter private Duration tickBudget = DEFAULT_TICK_BUDGET; //Time spent starting chunk loads every tick
+    @Getter @Setter private Executor executor = ForkJoinPool.commonPool(); //Encodes the loaded chunks
+    @Getter @Setter private @Nullable ProgressListener listener;
+
+    private final MaterialPalette materialPalette = new MaterialPalette();
+    private final BiomePalette biomePalette = new BiomePalette();
+
+    private final BitSet populatedChunks;
+    private final Long2ObjectMap<MagmaChunk> chunks = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>());
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger inFlightChunks = new AtomicInteger();
+    private final AtomicInteger processedChunks = new AtomicInteger();
+    private int nextIndex; //Only used by the ticking task
+
+    private final CompletableFuture<MagmaRegion> future = new CompletableFuture<>();
+    private volatile @Nullable Task task;
+
+    public MagmaCapture(Instance instance, Vec from, Vec to) {
+        this.instance = instance;
+
+        Vec fromChunk = from.sub(from.x() % 16, from.y(), from.z() % 16).div(16);
+        Vec toChunk = to.sub(to.x() % 16, to.y(), to.z() % 16).div(16);
+
+        this.xSize = Math.abs(toChunk.blockX() - fromChunk.blockX());
+        this.zSize = Math.abs(toChunk.blockZ() - fromChunk.blockZ());
+
+        this.lowestX = Math.min(fromChunk.blockX(), toChunk.blockX());
+        this.lowestZ = Math.min(fromChunk.blockZ(), toChunk.blockZ());
+
+        this.populatedChunks = new BitSet(getTotalChunks());
+    }
+
+    public int getTotalChunks() {
+        return this.xSize * this.zSize;
+    }
+
+    public int getProcessedChunks() {
+        return this.processedChunks.get();
+    }
+
+    /**
+     * @return Future completed with the region once every chunk is captured, or exceptionally if a chunk fails to encode
+     * @throws IllegalStateException if the capture was already started
+     */
+    public CompletableFuture<MagmaRegion> start() {
+        return start(() -> MinecraftServer.getSchedulerManager()
+                .buildTask(this::tick)
+                .repeat(1, TimeUnit.SERVER_TICK)
+                .schedule());
+    }
+
+    /**
+     * @param scheduler Schedules {@linkplain #tick()} every tick
+     */
+    CompletableFuture<MagmaRegion> start(Supplier<@Nullable Task> scheduler) {
+        if(!this.started.compareAndSet(false, true))
+            throw new IllegalStateException("Capture was already started");
+
+        if(this.inFlight < 1)
+            throw new IllegalArgumentException("At least one chunk has to be in flight");
+
+        if(getTotalChunks() == 0) {
+            complete();
+            return this.future;
+        }
+
+        this.task = scheduler.get();
+        return this.future;
+    }
+
+    void tick() {
+        if(this.future.isDone()) {
+            cancelTask();
+            return;
+        }
+
+        final int totalChunks = getTotalChunks();
+        final long deadline = System.nanoTime() + this.tickBudget.toNanos();
+
+        //The first load doesn't wait for the budget, so a slow tick can't stall the capture
+        for(int started = 0; this.nextIndex < totalChunks && this.inFlightChunks.get() < this.inFlight; started++) {
+            if(started > 0 && System.nanoTime() >= deadline) { break; }
+            capture(this.nextIndex++);
+        }
+    }
+
+    private void capture(int index) {
+        this.inFlightChunks.incrementAndGet();
+
+        final var chunkPos = MagmaUtils.getPositionFromMagmaIndex(index, this.xSize).add(this.lowestX, 0, this.lowestZ).mul(16);
+        final var unload = !ChunkUtils.isLoaded(this.instance, chunkPos); //Don't unload chunks that were already loaded
+
+        this.instance.loadOptionalChunk(chunkPos)
+                .thenApplyAsync(chunk -> encode(chunk, unload), this.executor)
+                .whenComplete((magmaChunk, error) -> {
+                    if(error != null) {
+                        LOGGER.error("Failed to capture chunk at index {}", index, error);
+                        this.future.completeExceptionally(error);
+                        cancelTask();
+                        return;
+                    }
+
+                    if(magmaChunk != null) {
+                        synchronized(this.populatedChunks) {
+                            this.populatedChunks.set(index);
+                        }
+                        this.chunks.put(index, magmaChunk);
+                    }
+
+                    this.inFlightChunks.decrementAndGet();
+
+                    int processed = this.processedChunks.incrementAndGet();
+                    if(this.listener != null)
+                        this.listener.onProgress(processed, getTotalChunks());
+
+                    if(processed == getTotalChunks())
+                        complete();
+                });
+    }
+
+    /**
+     * @return The encoded chunk, null if it isn't loaded or doesn't have any blocks
+     */
+    private @Nullable MagmaChunk encode(@Nullable Chunk chunk, boolean unload) {
+        if(chunk == null || !chunk.isLoaded()) { return null; }
+
+        try {
+            var magmaChunk = MagmaChunk.fromChunk(this.materialPalette, this.biomePalette, chunk);
+            return magmaChunk.getPopulatedSections().isEmpty() ? null : magmaChunk;
+        } finally {
+            if(unload)
+                this.instance.unloadChunk(chunk);
+        }
+    }
+
+    private void complete() {
+        cancelTask();
+        this.future.complete(new MagmaRegion(this.xSize, this.zSize, this.populatedChunks, this.materialPalette, this.biomePalette, this.chunks));
+    }
+
+    private void cancelTask() {
+        var task = this.task;
+        if(task != null)
+            task.cancel();
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * Called from the thread that finished the chunk, whether it was populated or not.
+         */
+        void onProgress(int processedChunks, int totalChunks);
+    }
+
+}
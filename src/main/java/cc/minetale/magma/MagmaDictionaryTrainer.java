@@ -0,0 +1,126 @@
+package cc.minetale.magma;
+
+import cc.minetale.magma.stream.CompressionOptions;
+import cc.minetale.magma.stream.MagmaDictionary;
+import cc.minetale.magma.stream.MagmaInputStream;
+import cc.minetale.magma.type.MagmaRegion;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Trains zstd dictionaries over libraries of similar regions, e.g. minigame maps sharing most of their palettes.
+ * Small regions compressed with a dictionary compress better and decompress faster, see {@linkplain CompressionOptions#withDictionary(MagmaDictionary)}.
+ */
+public final class MagmaDictionaryTrainer {
+
+    private MagmaDictionaryTrainer() {}
+
+    //zstd's default dictionary size, enough for the palettes and section layouts of a map library
+    public static final int DEFAULT_DICTIONARY_SIZE = 112_640;
+
+    //zstd recommends about a hundred times the dictionary size worth of samples
+    private static final int SAMPLES_PER_DICTIONARY_BYTE = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MagmaDictionaryTrainer.class);
+
+    public static MagmaDictionary train(Path directory) throws IOException {
+        return train(directory, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    /**
+     * Trains a dictionary over the regions in the directory, regions that fail to read are skipped.
+     * Regions are read one at a time in file name order, and reading stops once there are enough samples.
+     * The dictionary isn't registered, see {@linkplain MagmaDictionary#register(MagmaDictionary)}.
+     *
+     * @param dictionarySize Maximum size of the dictionary in bytes
+     * @throws IOException if the directory can't be listed or there aren't enough samples to train with
+     */
+    public static MagmaDictionary train(Path directory, int dictionarySize) throws IOException {
+        List<Path> paths;
+        try(Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith("." + MagmaUtils.FORMAT_NAME))
+                    .sorted()
+                    .toList();
+        }
+
+        var samples = new Samples(dictionarySize);
+        for(Path path : paths) {
+            if(samples.isFull()) { break; }
+
+            try(MagmaRegion region = MagmaRegion.read(new MagmaInputStream(Files.readAllBytes(path)))) {
+                samples.collect(region);
+            } catch(IOException e) {
+                LOGGER.error("Failed to read region {}, skipping it", path, e);
+            }
+        }
+
+        return samples.train();
+    }
+
+    /**
+     * Trains a dictionary over the palettes and chunks of the regions, regions past the sample budget aren't sampled.
+     *
+     * @param dictionarySize Maximum size of the dictionary in bytes
+     * @throws IOException if there aren't enough samples to train with
+     */
+    public static MagmaDictionary train(Iterable<MagmaRegion> regions, int dictionarySize) throws IOException {
+        var samples = new Samples(dictionarySize);
+        for(MagmaRegion region : regions) {
+            if(samples.isFull()) { break; }
+            samples.collect(region);
+        }
+
+        return samples.train();
+    }
+
+    /**
+     * Samples added to the trainer so far, full once one doesn't fit its buffer anymore.
+     */
+    private static final class Samples {
+
+        private final ZstdDictTrainer trainer;
+        private int added;
+        private boolean full;
+
+        Samples(int dictionarySize) {
+            this.trainer = new ZstdDictTrainer(dictionarySize * SAMPLES_PER_DICTIONARY_BYTE, dictionarySize);
+        }
+
+        void collect(MagmaRegion region) throws IOException {
+            region.collectSamples(sample -> {
+                //Samples past the trainer's buffer are dropped
+                if(this.full) { return; }
+
+                if(this.trainer.addSample(sample)) {
+                    this.added++;
+                } else {
+                    this.full = true;
+                }
+            });
+        }
+
+        boolean isFull() {
+            return this.full;
+        }
+
+        MagmaDictionary train() throws IOException {
+            LOGGER.debug("Training dictionary over {} samples...", this.added);
+
+            try {
+                return MagmaDictionary.of(this.trainer.trainSamples());
+            } catch(ZstdException e) {
+                throw new IOException("Failed to train dictionary over " + this.added + " samples", e);
+            }
+        }
+
+    }
+
+}
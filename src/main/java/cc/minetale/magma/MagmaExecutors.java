@@ -0,0 +1,72 @@
+package cc.minetale.magma;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for decoding and reading regions off Minestom's threads.
+ */
+public final class MagmaExecutors {
+
+    private MagmaExecutors() {}
+
+    //Executors#newVirtualThreadPerTaskExecutor, only exists on Java 21+
+    private static final @Nullable MethodHandle VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private static @Nullable MethodHandle findVirtualThreadExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+        } catch(NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public static boolean supportsVirtualThreads() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * @return Executor starting a virtual thread per task, null if the runtime doesn't support them
+     */
+    public static @Nullable ExecutorService newVirtualThreadExecutor() {
+        if(VIRTUAL_THREAD_EXECUTOR == null) { return null; }
+
+        try {
+            return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke();
+        } catch(Throwable e) {
+            throw new IllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * @param name Used to name the threads, e.g. "Magma-Loader-1"
+     * @return Fixed pool of daemon threads, won't keep the server running
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads) {
+        if(threads < 1)
+            throw new IllegalArgumentException("At least one thread is needed");
+
+        var counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "Magma-" + name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return Virtual thread executor if supported, otherwise a bounded pool with a thread per processor
+     */
+    public static ExecutorService newDefaultExecutor(String name) {
+        var executor = newVirtualThreadExecutor();
+        return executor != null ? executor : newBoundedExecutor(name, Runtime.getRuntime().availableProcessors());
+    }
+
+}
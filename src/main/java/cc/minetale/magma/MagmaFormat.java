@@ -0,0 +1,64 @@
+package cc.minetale.magma;
+
+/**
+ * Region headers and their format flags. Regions start with one of three layouts:
+ * <ul>
+ *     <li>Versioned: {@linkplain #MAGIC}, the format version byte, the codec ID byte and the flags short. Always written.</li>
+ *     <li>Flagged: {@linkplain #FLAGGED} combined with the flags in a single short, always zstd. Only read, never written anymore.</li>
+ *     <li>Legacy: straight the xSize short, always zstd. Its states and sections use the encodings from before the header was added
+ *     and are read with {@linkplain #LEGACY}. Only read, saving one writes the versioned layout.</li>
+ * </ul>
+ */
+public final class MagmaFormat {
+
+    private MagmaFormat() {}
+
+    //0x89 followed by "MGA", the first short has the FLAGGED bit with unknown flags, so it can't be mistaken for either older layout
+    public static final int MAGIC = 0x894D4741;
+
+    //Newest format version, regions from newer versions fail to read
+    public static final int VERSION = 1;
+
+    //Set on the first short of flagged regions, never set on a legacy xSize
+    public static final int FLAGGED = 0x8000;
+
+    //Every chunk is its own compressed frame located through an offset table
+    public static final int INDEXED = 0x0001;
+
+    //Palette sizes, indices and identifiers are written as varints and UTF-8 strings
+    public static final int COMPACT = 0x0002;
+
+    //Frames are compressed with a trained dictionary, its ID follows the flags
+    public static final int DICTIONARY = 0x0004;
+
+    //Light arrays start with a sentinel byte, absent and uniform arrays aren't stored in full
+    public static final int UNIFORM_LIGHT = 0x0008;
+
+    //Sections start with an encoding tag, uniform and sparse sections don't store an index for every block
+    public static final int SECTION_ENCODINGS = 0x0010;
+
+    //Chunks of sequential regions are prefixed with their length, so they can be decoded in parallel
+    public static final int CHUNK_LENGTHS = 0x0020;
+
+    public static final int KNOWN_FLAGS = INDEXED | COMPACT | DICTIONARY | UNIFORM_LIGHT | SECTION_ENCODINGS | CHUNK_LENGTHS;
+
+    //Never written, set on the streams of regions with the legacy layout so their per-block sections and SNBT are decoded
+    public static final int LEGACY = 0x4000;
+
+    /**
+     * @param header First short of the region
+     * @return Whether the region starts with the upper half of {@linkplain #MAGIC}
+     */
+    public static boolean isVersioned(short header) {
+        return header == (short) (MAGIC >>> 16);
+    }
+
+    public static boolean isFlagged(short header) {
+        return (header & FLAGGED) != 0;
+    }
+
+    public static boolean has(int flags, int flag) {
+        return (flags & flag) == flag;
+    }
+
+}
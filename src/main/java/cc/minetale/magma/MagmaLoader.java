@@ -1,18 +1,23 @@
 package cc.minetale.magma;
 
+import cc.minetale.magma.stream.CompressionOptions;
+import cc.minetale.magma.type.MagmaChunk;
 import cc.minetale.magma.type.MagmaRegion;
+import cc.minetale.magma.type.MagmaSection;
 import it.unimi.dsi.fastutil.bytes.Byte2ObjectMaps;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 import net.minestom.server.MinecraftServer;
 import net.minestom.server.exception.ExceptionManager;
 import net.minestom.server.instance.Chunk;
 import net.minestom.server.instance.DynamicChunk;
 import net.minestom.server.instance.IChunkLoader;
 import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.Section;
+import net.minestom.server.instance.block.Block;
 import net.minestom.server.instance.block.BlockManager;
 import net.minestom.server.utils.async.AsyncUtils;
-import net.minestom.server.utils.chunk.ChunkUtils;
-import net.minestom.server.utils.time.TimeUnit;
 import net.minestom.server.world.biomes.Biome;
 import net.minestom.server.world.biomes.BiomeManager;
 import org.jetbrains.annotations.NotNull;
@@ -20,9 +25,14 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 @Getter
 public class MagmaLoader implements IChunkLoader {
@@ -37,9 +47,28 @@ public class MagmaLoader implements IChunkLoader {
     private final Path path;
     private final MagmaRegion region;
 
+    @Setter private CompressionOptions compression = CompressionOptions.DEFAULT; //Used by #saveInstance(Instance)
+
+    /**
+     * Chunks are decoded and built on this executor when set, e.g. {@linkplain MagmaExecutors#newDefaultExecutor(String)}.
+     * Null builds them on the thread calling {@linkplain #loadChunk(Instance, int, int)}.
+     */
+    @Setter private @Nullable Executor executor;
+
+    @Getter(AccessLevel.NONE) private final Map<Instance, MagmaPrefetcher> prefetchers = new ConcurrentHashMap<>();
+
+    private RetentionPolicy retention = RetentionPolicy.KEEP_ALL;
+
+    //Estimated sizes of the decoded chunks by their index, least recently loaded first. Only used by RetentionPolicy.Mode#LRU.
+    @Getter(AccessLevel.NONE) private final LinkedHashMap<Integer, Long> retainedChunks = new LinkedHashMap<>(16, 0.75F, true);
+    @Getter(AccessLevel.NONE) private long retainedBytes;
+
     private MagmaLoader(@NotNull Path path, MagmaRegion region) {
         this.path = path;
         this.region = region;
+
+        region.getMaterialPalette().resolve();
+        region.getBiomePalette().resolve();
     }
 
     /**
@@ -48,42 +77,79 @@ public class MagmaLoader implements IChunkLoader {
      * @return Ready to use {@linkplain MagmaLoader}
      */
     public static CompletableFuture<MagmaLoader> create(@NotNull Path path) {
-        return new CompletableFuture<MagmaLoader>()
-                .completeAsync(() -> {
-                    try {
-                        var region = MagmaReader.read(path).get();
-                        return new MagmaLoader(path, region);
-                    } catch(InterruptedException | ExecutionException e) {
-                        Thread.currentThread().interrupt();
-                        MinecraftServer.getExceptionManager().handleException(e);
-                    }
+        return create(path, MagmaReader.defaultExecutor());
+    }
+
+    /**
+     * @param executor Executor the region is read on, no thread is blocked waiting for it
+     * @see #create(Path)
+     */
+    public static CompletableFuture<MagmaLoader> create(@NotNull Path path, @NotNull Executor executor) {
+        return MagmaReader.readMapped(path, executor)
+                .thenApply(region -> new MagmaLoader(path, region))
+                .exceptionally(e -> {
+                    EXCEPTION_MANAGER.handleException(e);
                     return null;
                 });
     }
 
-    //TODO Improve?
+    /**
+     * Starts warming up the region from its center, use {@linkplain #warmUp(Instance, int, int, int)} to know when it's done.
+     */
     @Override
     public void loadInstance(@NotNull Instance instance) {
-        try {
-            for(int x = 0; x < this.region.getXSize(); x++) {
-                for(int z = 0; z < this.region.getZSize(); z++) {
-                    if(!ChunkUtils.isLoaded(instance, x, z))
-                        instance.unloadChunk(x, z);
-                }
-            }
+        warmUp(instance, this.region.getXSize() / 2, this.region.getZSize() / 2, MagmaWarmUp.DEFAULT_CONCURRENCY)
+                .exceptionally(e -> {
+                    EXCEPTION_MANAGER.handleException(e);
+                    return null;
+                });
+    }
 
-            MinecraftServer.getSchedulerManager().buildTask(() -> {
-                for(int x = 0; x < this.region.getXSize(); x++) {
-                    for(int z = 0; z < this.region.getZSize(); z++) {
-                        instance.loadChunk(x, z);
-                    }
-                }
-            }).delay(8, TimeUnit.SECOND).schedule();
-        } catch(Exception e) {
-            e.printStackTrace();
+    /**
+     * Loads every populated chunk into the instance, closest to the spawn chunk first.
+     * @param concurrency Chunks loading at once
+     * @return Future completed once every populated chunk is loaded
+     */
+    public CompletableFuture<Void> warmUp(@NotNull Instance instance, int spawnX, int spawnZ, int concurrency) {
+        return new MagmaWarmUp(instance, this.region, spawnX, spawnZ, concurrency).start();
+    }
+
+    /**
+     * Regions that aren't indexed can't decode released chunks again, they always keep every chunk.
+     */
+    public void setRetention(@NotNull RetentionPolicy retention) {
+        if(retention.mode() != RetentionPolicy.Mode.KEEP_ALL && !this.region.isIndexed())
+            LOGGER.warn("Region {} isn't indexed, its chunks can't be released", this.path);
+
+        synchronized(this.retainedChunks) {
+            this.retention = retention;
+            this.retainedChunks.clear();
+            this.retainedBytes = 0;
         }
     }
 
+    /**
+     * Starts building the chunks players in the instance are heading towards ahead of time.
+     * @return The running prefetcher, configure it or read its hit and miss counts
+     */
+    public MagmaPrefetcher startPrefetching(@NotNull Instance instance) {
+        var prefetcher = this.prefetchers.computeIfAbsent(instance, key -> new MagmaPrefetcher(this, key));
+        if(!prefetcher.isRunning())
+            prefetcher.start();
+
+        return prefetcher;
+    }
+
+    public void stopPrefetching(@NotNull Instance instance) {
+        var prefetcher = this.prefetchers.remove(instance);
+        if(prefetcher != null)
+            prefetcher.stop();
+    }
+
+    public @Nullable MagmaPrefetcher getPrefetcher(@NotNull Instance instance) {
+        return this.prefetchers.get(instance);
+    }
+
     @Override
     public @NotNull CompletableFuture<@Nullable Chunk> loadChunk(@NotNull Instance instance, int chunkX, int chunkZ) {
         if (this.region == null) {
@@ -91,28 +157,78 @@ public class MagmaLoader implements IChunkLoader {
             return CompletableFuture.completedFuture(null);
         }
 
+        var chunkIndex = getPopulatedIndex(chunkX, chunkZ);
+        if(chunkIndex == -1)
+            return CompletableFuture.completedFuture(null);
+
+        var prefetcher = this.prefetchers.get(instance);
+        if(prefetcher != null) {
+            //Waits for a prefetch that's still being built instead of building the chunk twice
+            var prefetched = prefetcher.take(chunkX, chunkZ);
+            if(prefetched != null) {
+                return prefetched.thenCompose(chunk -> chunk != null ?
+                        CompletableFuture.completedFuture(chunk) :
+                        buildChunkAsync(instance, chunkX, chunkZ, chunkIndex));
+            }
+        }
+
+        return buildChunkAsync(instance, chunkX, chunkZ, chunkIndex);
+    }
+
+    private CompletableFuture<@Nullable Chunk> buildChunkAsync(Instance instance, int chunkX, int chunkZ, int chunkIndex) {
+        var executor = this.executor;
+        if(executor == null)
+            return CompletableFuture.completedFuture(buildChunk(instance, chunkX, chunkZ, chunkIndex));
+
+        return CompletableFuture.supplyAsync(() -> buildChunk(instance, chunkX, chunkZ, chunkIndex), executor)
+                .exceptionally(e -> {
+                    EXCEPTION_MANAGER.handleException(e);
+                    return null;
+                });
+    }
+
+    /**
+     * @return Magma index of the chunk, -1 if it's outside the region or not populated
+     */
+    int getPopulatedIndex(int chunkX, int chunkZ) {
         var xSize = this.region.getXSize();
         var zSize = this.region.getZSize();
 
         if((chunkX < 0 || chunkX > xSize - 1) || (chunkZ < 0 || chunkZ > zSize - 1))
-            return CompletableFuture.completedFuture(null);
+            return -1;
 
         var chunkIndex = MagmaUtils.getMagmaChunkIndex(chunkX, chunkZ, xSize);
 
         var populatedChunks = this.region.getPopulatedChunks();
         if(!populatedChunks.get(chunkIndex)) {
             LOGGER.debug("Skipping {} {} because it's not populated", chunkX, chunkZ);
-            return CompletableFuture.completedFuture(null);
+            return -1;
         }
 
-        var chunks = this.region.getChunks();
-        var magmaChunk = chunks.get(chunkIndex);
+        return chunkIndex;
+    }
+
+    /**
+     * Used by {@linkplain MagmaPrefetcher}.
+     * @return The built chunk, null if it's outside the region or not populated
+     */
+    @Nullable Chunk buildChunk(Instance instance, int chunkX, int chunkZ) {
+        var chunkIndex = getPopulatedIndex(chunkX, chunkZ);
+        return chunkIndex != -1 ? buildChunk(instance, chunkX, chunkZ, chunkIndex) : null;
+    }
+
+    /**
+     * Decodes the chunk and builds it, the chunk isn't part of the instance yet so any thread can do this.
+     */
+    private @Nullable Chunk buildChunk(Instance instance, int chunkX, int chunkZ, int chunkIndex) {
+        //Indexed regions decode the chunk from its own frame on first access
+        var magmaChunk = this.region.getChunk(chunkIndex);
 
         LOGGER.debug("Attempt loading at {} {}", chunkX, chunkZ);
 
         if(magmaChunk == null) {
             LOGGER.debug("Failed to retrieve chunk {}, {} at index {}", chunkX, chunkZ, chunkIndex);
-            return CompletableFuture.completedFuture(null);
+            return null;
         }
 
         final var minY = instance.getDimensionType().getMinY();
@@ -127,43 +243,155 @@ public class MagmaLoader implements IChunkLoader {
 
             var sectionIndex = sectionEntry.getByteKey() + minSection; //Section index within a chunk
 
+            //Uniform light arrays are shared between sections instead of copied, Minestom only sends them
             var section = chunk.getSection(sectionIndex);
             section.setSkyLight(magmaSection.getSkyLight());
             section.setBlockLight(magmaSection.getBlockLight());
 
-            for(var magmaBlock : magmaSection.getBlocks().values()) {
-                var blockIndex = magmaBlock.getSectionIndex(); //Block index within a section
+            fillBlocks(chunk, section, magmaSection, chunkX, sectionIndex, chunkZ);
+            fillBiomes(section, magmaSection);
+        }
 
-                var coords = MagmaUtils.getCoordsFromSectionIndex(16, blockIndex);
+        retain(chunkIndex, magmaChunk);
+        return chunk;
+    }
 
-                var block = magmaBlock.getBlock();
-                int x = (chunkX * Chunk.CHUNK_SIZE_X)             + coords[0];
-                int y = (sectionIndex * Chunk.CHUNK_SECTION_SIZE) + coords[1];
-                int z = (chunkZ * Chunk.CHUNK_SIZE_Z)             + coords[2];
-                chunk.setBlock(x, y, z, block);
+    /**
+     * Releases the decoded chunk now that it was built, or evicts the least recently loaded ones over the byte budget.
+     */
+    private void retain(int chunkIndex, MagmaChunk magmaChunk) {
+        if(!this.region.isIndexed()) { return; }
+
+        synchronized(this.retainedChunks) {
+            switch(this.retention.mode()) {
+                case KEEP_ALL -> {}
+                case RELEASE_AFTER_LOAD -> this.region.releaseChunk(chunkIndex);
+                case LRU -> {
+                    var previousSize = this.retainedChunks.put(chunkIndex, magmaChunk.estimateSize());
+                    this.retainedBytes += this.retainedChunks.get(chunkIndex) - (previousSize != null ? previousSize : 0);
+
+                    var iterator = this.retainedChunks.entrySet().iterator();
+                    while(this.retainedBytes > this.retention.byteBudget() && iterator.hasNext()) {
+                        var eldest = iterator.next();
+                        if(eldest.getKey() == chunkIndex) { break; } //Always keeps the chunk that was just loaded
+
+                        this.region.releaseChunk(eldest.getKey());
+                        this.retainedBytes -= eldest.getValue();
+                        iterator.remove();
+                    }
+                }
             }
+        }
+    }
 
-            for(var ent : Byte2ObjectMaps.fastIterable(magmaSection.getBiomes())) {
-                var biomeIndex = ent.getByteKey(); //Biome index within a section
-                var magmaBiome = ent.getValue();
-
-                int[] coords = MagmaUtils.getCoordsFromSectionIndex(4, biomeIndex);
+    /**
+     * Fills the section's block palette, every entry of the section-local palette is resolved only once.
+     * Uniform sections are filled with their block, sparse ones with their most common block before the others are set.
+     * Blocks that need a block entity still go through {@linkplain Chunk#setBlock(int, int, int, Block)}.
+     */
+    private void fillBlocks(Chunk chunk, Section section, MagmaSection magmaSection, int chunkX, int sectionIndex, int chunkZ) {
+        var materialPalette = this.region.getMaterialPalette();
+        var blocks = magmaSection.getBlocks();
+        var blockEntities = magmaSection.getBlockEntities();
+
+        var paletteSize = blocks.getPaletteSize();
+        var stateIds = new int[paletteSize];
+        var isBlockEntity = new boolean[paletteSize];
+        var hasBlockEntities = false;
+
+        for(int i = 0; i < paletteSize; i++) {
+            var block = materialPalette.getResolvedBlock(blocks.getValue(i));
+            if(block == null) { block = Block.BARRIER; } //State doesn't exist in this version
+
+            stateIds[i] = block.stateId();
+            isBlockEntity[i] = block.registry().isBlockEntity();
+            hasBlockEntities |= isBlockEntity[i];
+        }
 
-                var biome = magmaBiome.getBiome();
-                int x = coords[0] * 16;
-                int y = coords[1] * 16;
-                int z = coords[2] * 16;
-                chunk.setBiome(x, y, z, biome);
+        var palette = section.blockPalette();
+        if(blocks.isUniform()) {
+            palette.fill(stateIds[0]);
+        } else {
+            //Recorded when the section was read, sections encoded differently go through setAll
+            int background = magmaSection.getSparseBackground();
+            if(background != -1) {
+                palette.fill(stateIds[background]);
+                for(int blockIndex = 0; blockIndex < blocks.size(); blockIndex++) {
+                    int paletteIndex = blocks.getPaletteIndex(blockIndex);
+                    if(paletteIndex == background) { continue; }
+
+                    palette.set(sectionX(blockIndex), sectionY(blockIndex), sectionZ(blockIndex), stateIds[paletteIndex]);
+                }
+            } else {
+                palette.setAll((x, y, z) -> stateIds[blocks.getPaletteIndex(MagmaUtils.getSectionIndex(MagmaSection.BLOCK_DIMENSION, x, y, z))]);
             }
         }
 
-        return CompletableFuture.completedFuture(chunk);
+        if(!hasBlockEntities && blockEntities.isEmpty()) { return; }
+
+        for(int blockIndex = 0; blockIndex < blocks.size(); blockIndex++) { //Block index within a section
+            boolean hasNbt = blockEntities.containsKey((short) blockIndex);
+            if(!hasNbt && !isBlockEntity[blocks.getPaletteIndex(blockIndex)]) { continue; }
+
+            var block = magmaSection.getBlock(materialPalette, (short) blockIndex).getBlock();
+
+            int x = (chunkX * Chunk.CHUNK_SIZE_X)             + sectionX(blockIndex);
+            int y = (sectionIndex * Chunk.CHUNK_SECTION_SIZE) + sectionY(blockIndex);
+            int z = (chunkZ * Chunk.CHUNK_SIZE_Z)             + sectionZ(blockIndex);
+            chunk.setBlock(x, y, z, block);
+        }
+    }
+
+    //Coordinates of a block index within a section, same order as MagmaUtils#getSectionIndex with a dimension of 16
+    private static int sectionX(int blockIndex) {
+        return blockIndex & 0xF;
+    }
+
+    private static int sectionY(int blockIndex) {
+        return blockIndex >> 8;
+    }
+
+    private static int sectionZ(int blockIndex) {
+        return blockIndex >> 4 & 0xF;
+    }
+
+    private void fillBiomes(Section section, MagmaSection magmaSection) {
+        var biomePalette = this.region.getBiomePalette();
+        var biomes = magmaSection.getBiomes();
+
+        var paletteSize = biomes.getPaletteSize();
+        var biomeIds = new int[paletteSize];
+        for(int i = 0; i < paletteSize; i++) {
+            var biome = biomePalette.getResolvedBiomeAt((short) biomes.getValue(i));
+            biomeIds[i] = (biome != null ? biome : BIOME).id();
+        }
+
+        var palette = section.biomePalette();
+        if(biomes.isUniform()) {
+            palette.fill(biomeIds[0]);
+        } else {
+            palette.setAll((x, y, z) -> biomeIds[biomes.getPaletteIndex(MagmaUtils.getSectionIndex(MagmaSection.BIOME_DIMENSION, x, y, z))]);
+        }
     }
 
+    /**
+     * Replaces the region's file atomically. Indexed regions decode their chunks from the new file afterwards,
+     * chunks are decoded from the previous one while it's written.
+     */
     @Override
     public @NotNull CompletableFuture<Void> saveInstance(@NotNull Instance instance) {
-        MagmaWriter.write(region, path);
-        return AsyncUtils.VOID_FUTURE;
+        if(!MagmaWriter.write(this.region, this.path, this.region.getFlags(), this.compression))
+            return CompletableFuture.failedFuture(new IOException("Failed to save region " + this.path));
+
+        if(!this.region.isIndexed()) { return AsyncUtils.VOID_FUTURE; }
+
+        return MagmaReader.readMapped(this.path).thenAccept(written -> {
+            try {
+                this.region.reopen(written);
+            } catch(IOException e) {
+                throw new CompletionException(e);
+            }
+        });
     }
 
     @Override
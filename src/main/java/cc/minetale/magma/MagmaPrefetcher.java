@@ -0,0 +1,234 @@
+package cc.minetale.magma;
+
+import lombok.Getter;
+import lombok.Setter;
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.coordinate.Pos;
+import net.minestom.server.entity.Player;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.timer.Task;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import net.minestom.server.utils.time.TimeUnit;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Builds the chunks players are heading towards before Minestom asks for them. Every few ticks each player's movement
+ * is extrapolated {@linkplain #getLookaheadTicks()} ahead, and the chunks around where they'll be are built on the executor
+ * into a small ready-queue that {@linkplain MagmaLoader#loadChunk(Instance, int, int)} takes from.
+ * Chunks still being built are handed over as they are, so they're never built twice.
+ */
+public class MagmaPrefetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MagmaPrefetcher.class);
+
+    public static final int DEFAULT_LOOKAHEAD_TICKS = 40;
+    public static final int DEFAULT_RADIUS = 2;
+    public static final int DEFAULT_CAPACITY = 64;
+
+    //Ticks between checking the players
+    private static final int INTERVAL = 5;
+
+    @Getter private final MagmaLoader loader;
+    @Getter private final Instance instance;
+
+    @Getter @Setter private int lookaheadTicks = DEFAULT_LOOKAHEAD_TICKS; //How far ahead movement is extrapolated
+    @Getter @Setter private int radius = DEFAULT_RADIUS; //Chunks prefetched around the predicted one
+    @Getter @Setter private int capacity = DEFAULT_CAPACITY; //Chunks building or waiting to be loaded, oldest built ones are dropped
+    @Setter private @Nullable Executor executor; //Builds the prefetched chunks, see #getExecutor()
+
+    //Chunks being built or ready, completed with null if building failed
+    private final Map<Long, CompletableFuture<@Nullable Chunk>> prefetchedChunks = new ConcurrentHashMap<>();
+    private final Queue<Long> prefetchOrder = new ConcurrentLinkedQueue<>();
+    //Every chunk that was prefetched and not taken yet, even if it was dropped since. Only these count towards hits and misses.
+    private final Set<Long> requestedChunks = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private Map<UUID, Pos> lastPositions = new HashMap<>(); //Only used by the ticking task
+    private volatile @Nullable Task task;
+
+    public MagmaPrefetcher(MagmaLoader loader, Instance instance) {
+        this.loader = loader;
+        this.instance = instance;
+    }
+
+    /**
+     * @return Executor that was set, otherwise the loader's, otherwise {@linkplain MagmaReader#defaultExecutor()}
+     */
+    public Executor getExecutor() {
+        if(this.executor != null) { return this.executor; }
+
+        var loaderExecutor = this.loader.getExecutor();
+        return loaderExecutor != null ? loaderExecutor : MagmaReader.defaultExecutor();
+    }
+
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public int getReadyChunks() {
+        return (int) this.prefetchedChunks.values().stream()
+                .filter(CompletableFuture::isDone)
+                .count();
+    }
+
+    public boolean isRunning() {
+        return this.task != null;
+    }
+
+    /**
+     * @throws IllegalStateException if the prefetcher is already running
+     */
+    public void start() {
+        start(() -> MinecraftServer.getSchedulerManager()
+                .buildTask(this::tick)
+                .repeat(INTERVAL, TimeUnit.SERVER_TICK)
+                .schedule());
+    }
+
+    /**
+     * @param scheduler Schedules {@linkplain #tick()} every few ticks
+     */
+    synchronized void start(Supplier<Task> scheduler) {
+        if(this.task != null)
+            throw new IllegalStateException("Prefetcher is already running");
+
+        this.task = scheduler.get();
+    }
+
+    /**
+     * Stops watching the players and drops the chunks that weren't taken yet.
+     */
+    public synchronized void stop() {
+        var task = this.task;
+        if(task == null) { return; }
+
+        task.cancel();
+        this.task = null;
+
+        this.prefetchedChunks.clear();
+        this.prefetchOrder.clear();
+        this.requestedChunks.clear();
+    }
+
+    /**
+     * Takes the chunk out of the ready-queue. Counts a hit if it's ready or still being built,
+     * or a miss if it was prefetched but dropped before it was needed. Chunks that were never prefetched aren't counted.
+     * @return The prefetched chunk, which might still be building or be null if building failed.
+     * Null if it wasn't prefetched or was dropped.
+     */
+    public @Nullable CompletableFuture<@Nullable Chunk> take(int chunkX, int chunkZ) {
+        long key = ChunkUtils.getChunkIndex(chunkX, chunkZ);
+        if(!this.requestedChunks.remove(key)) { return null; }
+
+        var future = this.prefetchedChunks.remove(key);
+        if(future == null) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.prefetchOrder.remove(key);
+        this.hits.increment();
+        return future;
+    }
+
+    void tick() {
+        Map<UUID, Pos> positions = new HashMap<>();
+
+        for(Player player : this.instance.getPlayers()) {
+            var position = player.getPosition();
+            positions.put(player.getUuid(), position);
+
+            var lastPosition = this.lastPositions.get(player.getUuid());
+            if(lastPosition == null) { continue; }
+
+            //Blocks moved per tick since the last check, extrapolated ahead
+            double scale = (double) this.lookaheadTicks / INTERVAL;
+            double x = position.x() + (position.x() - lastPosition.x()) * scale;
+            double z = position.z() + (position.z() - lastPosition.z()) * scale;
+
+            int predictedX = ChunkUtils.getChunkCoordinate(x);
+            int predictedZ = ChunkUtils.getChunkCoordinate(z);
+
+            //Standing still, Minestom already loads the view distance
+            if(predictedX == position.chunkX() && predictedZ == position.chunkZ()) { continue; }
+
+            for(int chunkX = predictedX - this.radius; chunkX <= predictedX + this.radius; chunkX++) {
+                for(int chunkZ = predictedZ - this.radius; chunkZ <= predictedZ + this.radius; chunkZ++) {
+                    prefetch(chunkX, chunkZ);
+                }
+            }
+        }
+
+        //Forgets the players that left
+        this.lastPositions = positions;
+    }
+
+    void prefetch(int chunkX, int chunkZ) {
+        if(ChunkUtils.isLoaded(this.instance, chunkX, chunkZ)) { return; }
+        if(this.loader.getPopulatedIndex(chunkX, chunkZ) == -1) { return; }
+
+        long key = ChunkUtils.getChunkIndex(chunkX, chunkZ);
+        if(this.prefetchedChunks.containsKey(key)) { return; }
+
+        //Pending builds count against the capacity too, nothing new is started while they fill it
+        if(!evict(this.capacity - 1)) { return; }
+
+        CompletableFuture<@Nullable Chunk> future = new CompletableFuture<>();
+        if(this.prefetchedChunks.putIfAbsent(key, future) != null) { return; }
+        this.requestedChunks.add(key);
+        this.prefetchOrder.add(key);
+
+        getExecutor().execute(() -> {
+            try {
+                future.complete(this.loader.buildChunk(this.instance, chunkX, chunkZ));
+            } catch(Exception e) {
+                LOGGER.error("Failed to prefetch chunk {} {}", chunkX, chunkZ, e);
+                future.complete(null);
+            }
+
+            evict(this.capacity);
+        });
+    }
+
+    /**
+     * Drops the oldest chunks that are done building until at most {@code limit} chunks are left.
+     * @return false if the chunks still building don't fit the limit
+     */
+    private boolean evict(int limit) {
+        var iterator = this.prefetchOrder.iterator();
+        while(this.prefetchedChunks.size() > limit && iterator.hasNext()) {
+            long key = iterator.next();
+
+            var future = this.prefetchedChunks.get(key);
+            if(future != null && !future.isDone()) { continue; }
+
+            iterator.remove();
+            if(future != null)
+                this.prefetchedChunks.remove(key, future);
+        }
+
+        return this.prefetchedChunks.size() <= limit;
+    }
+
+}
@@ -1,37 +1,116 @@
 package cc.minetale.magma;
 
+import cc.minetale.magma.stream.FileChunkSource;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.type.MagmaRegion;
-import net.minestom.server.MinecraftServer;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
+/**
+ * Reads regions on an I/O executor, doesn't need a running server so it can be used by tooling too.
+ */
 public class MagmaReader {
 
+    /**
+     * Virtual threads if the runtime supports them, otherwise a bounded pool of daemon threads.
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    //Created on first use
+    private static final class DefaultExecutor {
+        private static final Executor INSTANCE = MagmaExecutors.newDefaultExecutor("Reader");
+    }
+
     public static CompletableFuture<MagmaRegion> read(Path path) {
-        var file = path.toFile();
+        return read(path, defaultExecutor());
+    }
+
+    /**
+     * Reads the region at the given path. Indexed regions keep the file open to decode chunks on demand,
+     * it gets closed along with the region, see {@linkplain MagmaRegion#close()}.
+     * @param executor Executor the file is read on
+     * @return Future completed exceptionally with a {@linkplain NoSuchFileException} if the file doesn't exist, or the {@linkplain IOException} it failed to be read with
+     */
+    public static CompletableFuture<MagmaRegion> read(Path path, Executor executor) {
+        if(!Files.exists(path))
+            return CompletableFuture.failedFuture(new NoSuchFileException(path.toString(), null, "Magma region file doesn't exist"));
+
+        return CompletableFuture.supplyAsync(() -> {
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+
+                //Unbuffered, so the channel's position stays at the first frame after reading the header
+                final var regionChannel = channel;
+                var mis = new MagmaInputStream(Channels.newInputStream(channel));
 
-        if(!file.exists())
-            throw new IllegalArgumentException("Magma region file doesn't exist");
+                var region = MagmaRegion.read(mis, in -> new FileChunkSource(regionChannel, regionChannel.position()));
+                if(!region.isIndexed())
+                    channel.close();
 
-        CompletableFuture<MagmaRegion> future = new CompletableFuture<>();
+                return region;
+            } catch(IOException e) {
+                closeQuietly(channel, e);
+                throw new CompletionException(e);
+            } catch(RuntimeException e) {
+                closeQuietly(channel, e);
+                throw e;
+            }
+        }, executor);
+    }
+
+    /**
+     * Reads the region through a read-only memory mapping of the file. Compressed data is decompressed straight
+     * from the mapping into direct buffers, so servers reading the same map share its pages through the OS page cache.
+     * Indexed regions serve their chunk frames from the mapping, which stays valid after the file is closed.
+     */
+    public static CompletableFuture<MagmaRegion> readMapped(Path path) {
+        return readMapped(path, defaultExecutor());
+    }
+
+    /**
+     * @param executor Executor the file is mapped and read on
+     * @see #readMapped(Path)
+     * @see #read(Path, Executor)
+     */
+    public static CompletableFuture<MagmaRegion> readMapped(Path path, Executor executor) {
+        if(!Files.exists(path))
+            return CompletableFuture.failedFuture(new NoSuchFileException(path.toString(), null, "Magma region file doesn't exist"));
 
-        MinecraftServer.getSchedulerManager().buildTask(() -> {
-            try (MagmaInputStream mis = new MagmaInputStream(
-                    new FileInputStream(file))) {
+        return CompletableFuture.supplyAsync(() -> {
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
 
-                var region = MagmaRegion.read(mis);
-                future.complete(region);
+                //Frames of indexed regions get served as views of the mapping
+                return MagmaRegion.read(new MagmaInputStream(mapped));
             } catch(IOException e) {
-                e.printStackTrace();
-                future.complete(null);
+                throw new CompletionException(e);
             }
-        }).schedule();
+        }, executor);
+    }
+
+    /**
+     * @param cause Failure the channel is closed after, a failure to close it gets added to it
+     */
+    private static void closeQuietly(FileChannel channel, Throwable cause) {
+        if(channel == null) { return; }
 
-        return future;
+        try {
+            channel.close();
+        } catch(IOException e) {
+            cause.addSuppressed(e);
+        }
     }
 
 }
@@ -1,27 +1,13 @@
 package cc.minetale.magma;
 
-import cc.minetale.magma.palette.BiomePalette;
-import cc.minetale.magma.palette.MaterialPalette;
-import cc.minetale.magma.type.MagmaChunk;
 import cc.minetale.magma.type.MagmaRegion;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import net.minestom.server.MinecraftServer;
 import net.minestom.server.coordinate.Vec;
 import net.minestom.server.instance.Chunk;
 import net.minestom.server.instance.Instance;
-import net.minestom.server.timer.Task;
-import net.minestom.server.utils.chunk.ChunkUtils;
 
 import java.nio.file.Path;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public final class MagmaUtils {
 
@@ -30,106 +16,15 @@ public final class MagmaUtils {
     public static final Path DEFAULT_DIRECTORY = Path.of(".", "regions");
     public static final String FORMAT_NAME = "magma";
 
-    //Batch size in chunks
-    public static final int BATCH_SIZE = 16;
-
     public static Path getDefaultLocation(String fileName) {
         return MagmaUtils.DEFAULT_DIRECTORY.resolve(fileName + "." + MagmaUtils.FORMAT_NAME);
     }
 
+    /**
+     * Captures the area with the default settings, see {@linkplain MagmaCapture} to configure them or track the progress.
+     */
     public static CompletableFuture<MagmaRegion> load(Instance instance, Vec from, Vec to) {
-        final var minY = instance.getDimensionType().getMinY();
-        final var maxY = instance.getDimensionType().getHeight();
-
-        final var sectionSize = Chunk.CHUNK_SECTION_SIZE;
-
-        final var minSection = minY / sectionSize;
-        final var maxSection = (minY + maxY) / sectionSize;
-
-        Vec fromChunk = from.sub(from.x() % 16, from.y(), from.z() % 16).div(16);
-        Vec toChunk = to.sub(to.x() % 16, to.y(), to.z() % 16).div(16);
-
-        int xSize = Math.abs(toChunk.blockX() - fromChunk.blockX());
-        int zSize = Math.abs(toChunk.blockZ() - fromChunk.blockZ());
-        var totalChunks = xSize * zSize;
-
-        BitSet populatedChunks = new BitSet(totalChunks);
-
-        int lowestX = Math.min(fromChunk.blockX(), toChunk.blockX());
-        int lowestZ = Math.min(fromChunk.blockZ(), toChunk.blockZ());
-
-        CompletableFuture<MagmaRegion> future = new CompletableFuture<>();
-
-        MaterialPalette materialPalette = new MaterialPalette();
-        BiomePalette biomePalette = new BiomePalette();
-
-        Long2ObjectMap<MagmaChunk> loadedChunks = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>());
-        AtomicInteger totalChunksProcessed = new AtomicInteger(0);
-
-        List<Task.Builder> tasks = Collections.synchronizedList(new ArrayList<>(totalChunks / BATCH_SIZE));
-
-        final var totalBatches = (int) Math.ceil((double) totalChunks / BATCH_SIZE);
-        for(int i = 0; i < totalBatches; i++) { //Batch
-            final var batchIndex = i;
-            Task.Builder task = MinecraftServer.getSchedulerManager().buildTask(() -> {
-                final var chunksInBatch = Math.min(BATCH_SIZE, totalChunks - (batchIndex * BATCH_SIZE));
-                AtomicInteger finishedInBatch = new AtomicInteger(0);
-
-                for(int j = 0; j < chunksInBatch; j++) { //Chunk
-                    final var chunkIndex = (batchIndex * BATCH_SIZE) + j;
-                    final var chunkPos = getPositionFromMagmaIndex(chunkIndex, xSize).add(lowestX, 0, lowestZ).mul(16);
-
-                    final var unload = !ChunkUtils.isLoaded(instance, chunkPos); //Don't unload chunks that were already loaded
-
-                    instance.loadOptionalChunk(chunkPos).thenAccept(chunk -> {
-                        //How many chunks will be finished in this batch after this one gets processed
-                        int finished = finishedInBatch.incrementAndGet();
-
-                        if(chunk == null || !chunk.isLoaded()) { return; }
-
-                        boolean isChunkEmpty = true;
-                        for(int y = 0; y < maxSection; y++) {
-                            var section = chunk.getSection(y);
-                            if(section.blockPalette().count() > 0) {
-                                isChunkEmpty = false;
-                                break;
-                            }
-                        }
-
-                        if(isChunkEmpty) {
-                            totalChunksProcessed.getAndIncrement();
-                            scheduleNextBatch(tasks, finished, chunksInBatch);
-                            return;
-                        }
-
-                        populatedChunks.set(chunkIndex);
-                        loadedChunks.put(chunkIndex, MagmaChunk.fromChunk(materialPalette, biomePalette, chunk));
-
-                        if(totalChunksProcessed.incrementAndGet() >= totalChunks)
-                            future.complete(new MagmaRegion(xSize, zSize, populatedChunks, materialPalette, biomePalette, loadedChunks));
-
-                        if(unload)
-                            instance.unloadChunk(chunk);
-
-                        scheduleNextBatch(tasks, finished, chunksInBatch);
-                    });
-                }
-            }).delay(500, ChronoUnit.MILLIS);
-
-            tasks.add(task);
-        }
-
-        tasks.get(totalBatches - 1).schedule();
-
-        return future;
-    }
-
-    private static void scheduleNextBatch(List<Task.Builder> tasks, int finished, int chunksInBatch) {
-        if(!tasks.isEmpty() && finished >= chunksInBatch) {
-            var index = tasks.size() - 1;
-            tasks.remove(index);
-            tasks.get(index - 1).schedule();
-        }
+        return new MagmaCapture(instance, from, to).start();
     }
 
     public static int getMagmaChunkIndex(int x, int z, int xSize) {
@@ -146,16 +41,61 @@ public final class MagmaUtils {
         return new Vec(x, 0, z);
     }
 
+    /**
+     * Orders the populated chunks in rings going outward from the center, which gets clamped into the region.
+     * @return Magma indices of the populated chunks, closest to the center first
+     */
+    public static int[] getSpiralOrder(BitSet populatedChunks, int xSize, int zSize, int centerX, int centerZ) {
+        int[] order = new int[populatedChunks.cardinality()];
+        if(order.length == 0) { return order; }
+
+        centerX = Math.max(0, Math.min(centerX, xSize - 1));
+        centerZ = Math.max(0, Math.min(centerZ, zSize - 1));
+
+        final int maxRing = Math.max(Math.max(centerX, xSize - 1 - centerX), Math.max(centerZ, zSize - 1 - centerZ));
+
+        int count = 0;
+        for(int ring = 0; ring <= maxRing; ring++) {
+            //Walks the ring clockwise starting at its top left corner, the center is a ring of one
+            int perimeter = ring == 0 ? 1 : ring * 8;
+            int x = centerX - ring;
+            int z = centerZ - ring;
+
+            for(int step = 0; step < perimeter; step++) {
+                if(x >= 0 && x < xSize && z >= 0 && z < zSize) {
+                    int index = getMagmaChunkIndex(x, z, xSize);
+                    if(populatedChunks.get(index))
+                        order[count++] = index;
+                }
+
+                int side = step / Math.max(1, ring * 2);
+                switch(side) {
+                    case 0 -> x++;
+                    case 1 -> z++;
+                    case 2 -> x--;
+                    default -> z--;
+                }
+            }
+        }
+
+        return order;
+    }
+
     //Reversed PaletteImpl#getSectionIndex
     public static int[] getCoordsFromSectionIndex(int dimension, int index) {
+        final int bits = Integer.numberOfTrailingZeros(dimension);
+        final int mask = dimension - 1;
+
         int[] coords = new int[3];
-        coords[1] = index >> (dimension / 2);       //Y
-        coords[2] = index >> (dimension / 4) & 0xF; //Z
-        coords[0] = index                    & 0xF; //X
+        coords[1] = index >> (bits * 2);       //Y
+        coords[2] = index >> bits & mask;      //Z
+        coords[0] = index         & mask;      //X
         return coords;
     }
 
+    //Same order as PaletteImpl#getSectionIndex, dimension has to be a power of 2
     public static int getSectionIndex(int dimension, int x, int y, int z) {
-        return y << (dimension / 2) | z << (dimension / 4) | x;
+        final int bits = Integer.numberOfTrailingZeros(dimension);
+        return y << (bits * 2) | z << bits | x;
     }
 }
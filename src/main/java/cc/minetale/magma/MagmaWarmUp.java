@@ -0,0 +1,117 @@
+package cc.minetale.magma;
+
+import cc.minetale.magma.type.MagmaRegion;
+import lombok.Getter;
+import net.minestom.server.instance.Instance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads every populated chunk of a region into an instance, in rings going outward from the spawn chunk.
+ * At most {@linkplain #getConcurrency()} chunks are loading at once, empty chunks are skipped.
+ */
+public class MagmaWarmUp {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MagmaWarmUp.class);
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    @Getter private final Instance instance;
+    @Getter private final int concurrency;
+
+    private final int xSize;
+    private final int[] order;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicInteger loadedChunks = new AtomicInteger();
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    public MagmaWarmUp(Instance instance, MagmaRegion region, int spawnX, int spawnZ, int concurrency) {
+        if(concurrency < 1)
+            throw new IllegalArgumentException("At least one chunk has to load at once");
+
+        this.instance = instance;
+        this.concurrency = concurrency;
+
+        this.xSize = region.getXSize();
+        this.order = MagmaUtils.getSpiralOrder(region.getPopulatedChunks(), region.getXSize(), region.getZSize(), spawnX, spawnZ);
+    }
+
+    public int getTotalChunks() {
+        return this.order.length;
+    }
+
+    public int getLoadedChunks() {
+        return this.loadedChunks.get();
+    }
+
+    /**
+     * @return Future completed once every populated chunk is loaded, or exceptionally if one fails to
+     * @throws IllegalStateException if the warm-up was already started
+     */
+    public CompletableFuture<Void> start() {
+        if(!this.started.compareAndSet(false, true))
+            throw new IllegalStateException("Warm-up was already started");
+
+        if(this.order.length == 0) {
+            this.future.complete(null);
+            return this.future;
+        }
+
+        for(int i = 0; i < Math.min(this.concurrency, this.order.length); i++) {
+            loadNext();
+        }
+
+        return this.future;
+    }
+
+    /**
+     * Keeps loading on this thread while chunks load immediately (e.g. they were already loaded),
+     * otherwise continues once the pending chunk is done.
+     */
+    private void loadNext() {
+        while(!this.future.isDone()) {
+            int next = this.nextChunk.getAndIncrement();
+            if(next >= this.order.length) { return; }
+
+            var position = MagmaUtils.getPositionFromMagmaIndex(this.order[next], this.xSize);
+            var chunkFuture = this.instance.loadChunk(position.blockX(), position.blockZ());
+
+            if(!chunkFuture.isDone()) {
+                chunkFuture.whenComplete((chunk, error) -> {
+                    if(onLoaded(error))
+                        loadNext();
+                });
+                return;
+            }
+
+            if(!onLoaded(chunkFuture.handle((chunk, error) -> error).join()))
+                return;
+        }
+    }
+
+    /**
+     * @return Whether to continue loading
+     */
+    private boolean onLoaded(Throwable error) {
+        if(error != null) {
+            LOGGER.error("Failed to warm up a chunk", error);
+            this.future.completeExceptionally(error);
+            return false;
+        }
+
+        if(this.loadedChunks.incrementAndGet() == this.order.length) {
+            this.future.complete(null);
+            return false;
+        }
+
+        return true;
+    }
+
+}
@@ -1,31 +1,62 @@
 package cc.minetale.magma;
 
-import cc.minetale.magma.stream.MagmaOutputStream;
+import cc.minetale.magma.stream.CompressionOptions;
 import cc.minetale.magma.type.MagmaRegion;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class MagmaWriter {
 
     public static boolean write(MagmaRegion region, Path path) {
-        try {
-            var file = path.toFile();
+        return write(region, path, 0);
+    }
+
+    /**
+     * @param flags Format flags from {@linkplain MagmaFormat}, e.g. {@linkplain MagmaFormat#INDEXED} to allow loading chunks on demand
+     */
+    public static boolean write(MagmaRegion region, Path path, int flags) {
+        return write(region, path, flags, CompressionOptions.DEFAULT);
+    }
 
-            Files.deleteIfExists(path);
-            file.getParentFile().mkdirs();
+    /**
+     * @param compression e.g. {@linkplain CompressionOptions#FAST} for autosaves or {@linkplain CompressionOptions#MAX} for maps that get distributed
+     */
+    public static boolean write(MagmaRegion region, Path path, int flags, CompressionOptions compression) {
+        Path temp = null;
+        try {
+            path = path.toAbsolutePath();
+            Files.createDirectories(path.getParent());
 
-            MagmaOutputStream mos = new MagmaOutputStream(new FileOutputStream(file));
+            //Written next to the target and moved over it once complete, a failed write leaves the previous file intact
+            temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
 
-            region.write(mos);
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                region.write(channel, flags, compression);
+                channel.force(true);
+            }
 
-            mos.close();
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
         } catch(IOException e) {
             e.printStackTrace();
+            deleteQuietly(temp);
         }
         return false;
     }
 
+    private static void deleteQuietly(Path temp) {
+        if(temp == null) { return; }
+
+        try {
+            Files.deleteIfExists(temp);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -0,0 +1,37 @@
+package cc.minetale.magma;
+
+/**
+ * How long {@linkplain MagmaLoader} keeps decoded chunks once they were built into the instance.
+ * Released chunks are decoded from their frame again when needed, so only indexed regions can release them,
+ * other regions always keep everything.
+ *
+ * @param mode When chunks are released
+ * @param byteBudget Estimated memory the decoded chunks can take up, only used by {@linkplain Mode#LRU}
+ */
+public record RetentionPolicy(Mode mode, long byteBudget) {
+
+    //Every chunk stays decoded, the instance and the region both hold the world
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(Mode.KEEP_ALL, 0);
+
+    //The instance owns loaded chunks, reloading one after it was unloaded decodes it again
+    public static final RetentionPolicy RELEASE_AFTER_LOAD = new RetentionPolicy(Mode.RELEASE_AFTER_LOAD, 0);
+
+    public RetentionPolicy {
+        if(byteBudget < 0)
+            throw new IllegalArgumentException("Byte budget can't be negative");
+    }
+
+    /**
+     * Keeps the most recently loaded chunks decoded until their estimated size goes over the budget.
+     */
+    public static RetentionPolicy lru(long byteBudget) {
+        return new RetentionPolicy(Mode.LRU, byteBudget);
+    }
+
+    public enum Mode {
+        KEEP_ALL,
+        RELEASE_AFTER_LOAD,
+        LRU
+    }
+
+}
@@ -3,24 +3,37 @@ package cc.minetale.magma.palette;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
 import cc.minetale.magma.type.MagmaBiome;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
 import net.minestom.server.utils.NamespaceID;
 import net.minestom.server.world.biomes.Biome;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Biomes of a region by their index, see {@linkplain MaterialPalette} for how lookups and inserts avoid locking.
+ */
 public class BiomePalette {
 
-    private final Short2ObjectMap<MagmaBiome> palette;
+    private final ConcurrentHashMap<NamespaceID, MagmaBiome> index;
+    private final AtomicReference<MagmaBiome[]> biomes; //Copy-on-write, by biome index
+    private final AtomicInteger size; //Only covers published biomes, see MaterialPalette#advanceSize()
+    private final AtomicInteger nextIndex; //Handed out to new biomes before they're published
+    private volatile Resolved resolved; //Biomes of the latest array, see #getResolvedBiomeAt(short)
 
     public BiomePalette(int expected) {
-        this.palette = new Short2ObjectOpenHashMap<>(expected);
+        this.index = new ConcurrentHashMap<>(expected);
+        this.biomes = new AtomicReference<>(new MagmaBiome[expected]);
+        this.size = new AtomicInteger();
+        this.nextIndex = new AtomicInteger();
     }
 
     public BiomePalette() {
-        this.palette = new Short2ObjectOpenHashMap<>();
+        this(8);
     }
 
     public @Nullable MagmaBiome findInPalette(Biome biome) {
@@ -28,14 +41,7 @@ public class BiomePalette {
     }
 
     public @Nullable MagmaBiome findInPalette(NamespaceID name) {
-        synchronized(this.palette) {
-            for(var biome : this.palette.values()) {
-                NamespaceID existingName = biome.getName();
-                if(existingName.equals(name)) { return biome; }
-            }
-
-            return null;
-        }
+        return this.index.get(name);
     }
 
     /**
@@ -53,39 +59,91 @@ public class BiomePalette {
      * @return An existing or newly created {@linkplain MagmaBiome}
      */
     public MagmaBiome findInPaletteOrAdd(NamespaceID name) {
-        synchronized(this.palette) {
-            for(MagmaBiome biome : this.palette.values()) {
-                NamespaceID existingName = biome.getName();
-                if(existingName.equals(name)) { return biome; }
-            }
+        MagmaBiome biome = this.index.get(name);
+        if(biome != null) { return biome; }
 
-            var newIndex = getSize();
-            MagmaBiome biome = new MagmaBiome(newIndex, name);
+        return this.index.computeIfAbsent(name, key -> {
+            var newIndex = (short) this.nextIndex.getAndIncrement();
+            MagmaBiome newBiome = new MagmaBiome(newIndex, key);
 
-            setBiomeAt(newIndex, biome);
+            publish(newIndex, newBiome);
+            advanceSize();
 
-            return biome;
-        }
+            return newBiome;
+        });
     }
 
     public MagmaBiome getBiomeAt(short index) {
-        return this.palette.get(index);
+        var biomes = this.biomes.get();
+        return index < biomes.length ? biomes[index] : null;
+    }
+
+    /**
+     * @return Minestom biome at the given index, resolved once for all the biomes and reused until a biome gets added
+     */
+    public Biome getResolvedBiomeAt(short index) {
+        return resolve()[index];
+    }
+
+    /**
+     * Resolves every biome with the {@linkplain net.minestom.server.world.biomes.BiomeManager}.
+     * @return Minestom biomes by their index, null if the biome isn't registered
+     */
+    public Biome[] resolve() {
+        var current = this.biomes.get();
+
+        var resolved = this.resolved;
+        if(resolved != null && resolved.biomes == current) { return resolved.resolved; }
+
+        var biomes = new Biome[getSize()];
+        for(int i = 0; i < biomes.length; i++) {
+            biomes[i] = current[i].getBiome();
+        }
+
+        this.resolved = new Resolved(current, biomes);
+        return biomes;
     }
 
     public void setBiomeAt(short index, MagmaBiome biome) {
-        this.palette.put(index, biome);
+        this.index.put(biome.getName(), biome);
+        this.nextIndex.accumulateAndGet(index + 1, Math::max);
+
+        publish(index, biome);
+        this.size.accumulateAndGet(index + 1, Math::max);
+    }
+
+    private void publish(short index, MagmaBiome biome) {
+        MagmaBiome[] current;
+        MagmaBiome[] updated;
+        do {
+            current = this.biomes.get();
+            updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            updated[index] = biome;
+        } while(!this.biomes.compareAndSet(current, updated));
+    }
+
+    private void advanceSize() {
+        int size;
+        while((size = this.size.get()) < this.nextIndex.get()) {
+            var biomes = this.biomes.get();
+            if(size >= biomes.length || biomes[size] == null) { return; }
+
+            this.size.compareAndSet(size, size + 1);
+        }
     }
 
     public short getSize() {
-        return (short) this.palette.size();
+        return (short) this.size.get();
     }
 
-    public Short2ObjectMap<MagmaBiome> getAll() {
-        return this.palette;
+    public List<MagmaBiome> getAll() {
+        return Arrays.asList(Arrays.copyOf(this.biomes.get(), getSize()));
     }
 
+    private record Resolved(MagmaBiome[] biomes, Biome[] resolved) {}
+
     public static BiomePalette read(MagmaInputStream mis) throws IOException {
-        int size = mis.readShort();
+        int size = mis.readCompactShort();
 
         BiomePalette palette = new BiomePalette(size);
         for(short i = 0; i < size; i++) {
@@ -101,7 +159,7 @@ public class BiomePalette {
     }
 
     public void write(MagmaOutputStream mos) throws IOException {
-        mos.writeShort(getSize());
+        mos.writeCompactShort(getSize());
 
         for(short i = 0; i < getSize(); i++) {
             MagmaBiome biome = getBiomeAt(i);
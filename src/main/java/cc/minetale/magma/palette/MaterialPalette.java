@@ -1,80 +1,178 @@
 package cc.minetale.magma.palette;
 
+import cc.minetale.magma.MagmaFormat;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
 import cc.minetale.magma.type.MagmaMaterial;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import lombok.Getter;
 import net.minestom.server.instance.block.Block;
 import net.minestom.server.utils.NamespaceID;
 
 import java.io.IOException;
-
-@Getter
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Materials of a region by their index. Lookups by {@linkplain NamespaceID} go through a hash index and never lock,
+ * new materials are inserted through {@linkplain ConcurrentHashMap#computeIfAbsent(Object, java.util.function.Function)}
+ * and published with a CAS, so regions can be captured from multiple threads at once.
+ */
 public class MaterialPalette {
 
-    private final Int2ObjectMap<MagmaMaterial> palette;
+    private final ConcurrentHashMap<NamespaceID, MagmaMaterial> index;
+    private final AtomicReference<MagmaMaterial[]> materials; //Copy-on-write, by material index
+    private final AtomicInteger size; //Only covers published materials, see #advanceSize()
+    private final AtomicInteger nextIndex; //Handed out to new materials before they're published
 
     public MaterialPalette(int expected) {
-        this.palette = new Int2ObjectOpenHashMap<>(expected);
+        this.index = new ConcurrentHashMap<>(expected);
+        this.materials = new AtomicReference<>(new MagmaMaterial[expected]);
+        this.size = new AtomicInteger();
+        this.nextIndex = new AtomicInteger();
     }
 
     public MaterialPalette() {
-        this.palette = new Int2ObjectOpenHashMap<>();
+        this(16);
     }
 
-    //TODO Fix docs
     /**
      * Tries to find {@linkplain MagmaMaterial} in the given Magma palette and adds a new one if it couldn't find one.
+     * The block's state gets added to the material's {@linkplain StatePalette} if it isn't there yet.
      * @param block Minestom {@linkplain Block} to search Magma
      * @return An existing or newly created {@linkplain MagmaMaterial}
      */
     public MagmaMaterial findInPaletteOrAdd(Block block) {
         NamespaceID id = block.namespace();
 
-        synchronized(this.palette) {
-            for(MagmaMaterial material : this.palette.values()) {
-                NamespaceID existingID = material.getId();
-                if(existingID.equals(id)) {
-                    var statePalette = material.getStatePalette();
-                    statePalette.addStateIfNotFound(block.stateId());
-                    return material;
-                }
-            }
+        MagmaMaterial material = this.index.get(id);
+        if(material == null) {
+            //Runs at most once per id, losing threads wait for the winner and get its material
+            material = this.index.computeIfAbsent(id, key -> {
+                var newIndex = this.nextIndex.getAndIncrement();
+                MagmaMaterial newMaterial = new MagmaMaterial(newIndex, false, block); //TODO Implement custom blocks
+
+                publish(newIndex, newMaterial);
+                advanceSize();
 
-            var newIndex = this.palette.size();
-            MagmaMaterial newMaterial = new MagmaMaterial(newIndex, false, block); //TODO Implement custom blocks
+                return newMaterial;
+            });
+        }
+
+        material.getStatePalette().addStateIfNotFound(block.stateId());
+        return material;
+    }
 
-            setMaterialAt(newIndex, newMaterial);
+    /**
+     * Finds or adds both the material and the state of the block.
+     * @return Reference to the block's state, see {@linkplain #toReference(int, short)}
+     */
+    public int findReferenceOrAdd(Block block) {
+        MagmaMaterial material = findInPaletteOrAdd(block);
+        short stateIndex = material.getStatePalette().findInPaletteOrAdd(block.stateId());
+        return toReference(material.getIndex(), stateIndex);
+    }
 
-            return newMaterial;
+    /**
+     * @return stateId of the referenced state
+     */
+    public short getStateId(int reference) {
+        MagmaMaterial material = getMaterialAt(getMaterialIndex(reference));
+        return material.getStatePalette().getStateAt(getStateIndex(reference));
+    }
+
+    /**
+     * @return Block of the referenced state, see {@linkplain StatePalette#getResolvedBlockAt(short)}
+     */
+    public Block getResolvedBlock(int reference) {
+        MagmaMaterial material = getMaterialAt(getMaterialIndex(reference));
+        return material.getStatePalette().getResolvedBlockAt(getStateIndex(reference));
+    }
+
+    /**
+     * Resolves the {@linkplain Block} of every state ahead of time, so loading chunks doesn't have to look them up.
+     */
+    public void resolve() {
+        for(int i = 0; i < getSize(); i++) {
+            getMaterialAt(i).getStatePalette().resolve();
         }
     }
 
+    /**
+     * Packs a material index and a state index within that material's {@linkplain StatePalette} into a single int,
+     * used as the values of a section's {@linkplain SectionPalette}.
+     */
+    public static int toReference(int materialIndex, short stateIndex) {
+        return materialIndex << 16 | (stateIndex & 0xFFFF);
+    }
+
+    public static int getMaterialIndex(int reference) {
+        return reference >>> 16;
+    }
+
+    public static short getStateIndex(int reference) {
+        return (short) reference;
+    }
+
     public MagmaMaterial getMaterialAt(int index) {
-        return this.palette.get(index);
+        var materials = this.materials.get();
+        return index < materials.length ? materials[index] : null;
     }
 
     public void setMaterialAt(int index, MagmaMaterial material) {
-        this.palette.put(index, material);
+        this.index.put(material.getId(), material);
+        this.nextIndex.accumulateAndGet(index + 1, Math::max);
+
+        publish(index, material);
+        this.size.accumulateAndGet(index + 1, Math::max);
+    }
+
+    private void publish(int index, MagmaMaterial material) {
+        MagmaMaterial[] current;
+        MagmaMaterial[] updated;
+        do {
+            current = this.materials.get();
+            updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            updated[index] = material;
+        } while(!this.materials.compareAndSet(current, updated));
+    }
+
+    /**
+     * Grows the size over every published material. Materials published ahead of a lower index
+     * get covered by whichever thread publishes the last one before them.
+     */
+    private void advanceSize() {
+        int size;
+        while((size = this.size.get()) < this.nextIndex.get()) {
+            var materials = this.materials.get();
+            if(size >= materials.length || materials[size] == null) { return; }
+
+            this.size.compareAndSet(size, size + 1);
+        }
     }
 
     public int getSize() {
-        return this.palette.size();
+        return this.size.get();
     }
 
-    public Int2ObjectMap<MagmaMaterial> getAll() {
-        return this.palette;
+    public List<MagmaMaterial> getAll() {
+        return Arrays.asList(Arrays.copyOf(this.materials.get(), getSize()));
     }
 
+    /**
+     * Reads the region's {@linkplain PropertyDictionary} followed by the materials.
+     * Legacy regions don't have a dictionary, their states store the property strings themselves.
+     */
     public static MaterialPalette read(MagmaInputStream mis) throws IOException {
-        int size = mis.readInt();
+        PropertyDictionary dictionary = mis.has(MagmaFormat.LEGACY) ? new PropertyDictionary() : PropertyDictionary.read(mis);
+
+        int size = mis.readCompactInt();
 
         MaterialPalette palette = new MaterialPalette(size);
         for(var i = 0; i < size; i++) {
             try {
-                MagmaMaterial material = MagmaMaterial.read(i, mis);
+                MagmaMaterial material = MagmaMaterial.read(i, dictionary, mis);
                 palette.setMaterialAt(i, material);
             } catch(IOException e) {
                 e.printStackTrace();
@@ -85,11 +183,20 @@ public class MaterialPalette {
     }
 
     public void write(MagmaOutputStream mos) throws IOException {
-        mos.writeInt(getSize());
+        var size = getSize();
 
-        for(int i = 0; i < getSize(); i++) {
+        PropertyDictionary dictionary = new PropertyDictionary();
+        for(int i = 0; i < size; i++) {
+            MagmaMaterial material = getMaterialAt(i);
+            material.getStatePalette().collectProperties(dictionary, material);
+        }
+
+        dictionary.write(mos);
+
+        mos.writeCompactInt(size);
+        for(int i = 0; i < size; i++) {
             MagmaMaterial material = getMaterialAt(i);
-            material.write(mos);
+            material.write(dictionary, mos);
         }
     }
 
@@ -0,0 +1,163 @@
+package cc.minetale.magma.palette;
+
+import cc.minetale.magma.stream.MagmaInputStream;
+import cc.minetale.magma.stream.MagmaOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.utils.NamespaceID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Property keys and values of every state within a region, each string is stored once
+ * and states refer to them by their index. See {@linkplain StatePalette#write(MagmaOutputStream, PropertyDictionary, cc.minetale.magma.type.MagmaMaterial)}.
+ */
+public class PropertyDictionary {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PropertyDictionary.class);
+
+    //Roughly every vanilla state, the cache is cleared once it holds more
+    private static final int MAX_CACHED_STATES = 1 << 15;
+
+    //Translations from property tuples to stateIds, shared between regions as they're the same for a given server version
+    private static final Map<StateKey, Short> STATE_CACHE = new ConcurrentHashMap<>();
+
+    private final List<String> keys;
+    private final List<String> values;
+
+    private final Object2IntOpenHashMap<String> keyToIndex;
+    private final Object2IntOpenHashMap<String> valueToIndex;
+
+    public PropertyDictionary() {
+        this.keys = new ArrayList<>();
+        this.values = new ArrayList<>();
+
+        this.keyToIndex = new Object2IntOpenHashMap<>();
+        this.keyToIndex.defaultReturnValue(-1);
+        this.valueToIndex = new Object2IntOpenHashMap<>();
+        this.valueToIndex.defaultReturnValue(-1);
+    }
+
+    /**
+     * @return Index of the key, added if it isn't in the dictionary yet
+     */
+    public short keyIndex(String key) {
+        return intern(this.keys, this.keyToIndex, key);
+    }
+
+    /**
+     * @return Index of the value, added if it isn't in the dictionary yet
+     */
+    public short valueIndex(String value) {
+        return intern(this.values, this.valueToIndex, value);
+    }
+
+    private static short intern(List<String> table, Object2IntOpenHashMap<String> indices, String string) {
+        int index = indices.getInt(string);
+        if(index == -1) {
+            index = table.size();
+            table.add(string);
+            indices.put(string, index);
+        }
+
+        return (short) index;
+    }
+
+    public String getKey(short index) {
+        return this.keys.get(index);
+    }
+
+    public String getValue(short index) {
+        return this.values.get(index);
+    }
+
+    /**
+     * Translates a property tuple of a material into a stateId, only the first translation of a tuple goes through {@linkplain Block#withProperties(Map)}.
+     * Tuples this version doesn't know, e.g. from regions saved by another version, fall back to the material's default state.
+     * @param keys Keys of the material's properties, strings from this dictionary
+     * @param values Values for each of the keys, strings from this dictionary
+     */
+    public static short resolveState(Block material, String[] keys, String[] values) {
+        var stateKey = new StateKey(material.namespace(), keys, values);
+
+        Short stateId = STATE_CACHE.get(stateKey);
+        if(stateId != null) { return stateId; }
+
+        Map<String, String> properties = new HashMap<>(keys.length);
+        for(int i = 0; i < keys.length; i++) {
+            properties.put(keys[i], values[i]);
+        }
+
+        try {
+            stateId = material.withProperties(properties).stateId();
+        } catch(IllegalArgumentException e) {
+            LOGGER.warn("Unknown properties {} of {}, using its default state", properties, material.namespace());
+            return material.stateId();
+        }
+
+        if(STATE_CACHE.size() >= MAX_CACHED_STATES)
+            STATE_CACHE.clear();
+        STATE_CACHE.put(stateKey, stateId);
+
+        return stateId;
+    }
+
+    public static PropertyDictionary read(MagmaInputStream mis) throws IOException {
+        var dictionary = new PropertyDictionary();
+
+        short keyCount = mis.readCompactShort();
+        for(short i = 0; i < keyCount; i++) {
+            dictionary.keyIndex(mis.readCompactString());
+        }
+
+        short valueCount = mis.readCompactShort();
+        for(short i = 0; i < valueCount; i++) {
+            dictionary.valueIndex(mis.readCompactString());
+        }
+
+        return dictionary;
+    }
+
+    public void write(MagmaOutputStream mos) throws IOException {
+        mos.writeCompactShort(this.keys.size());
+        for(String key : this.keys) {
+            mos.writeCompactString(key);
+        }
+
+        mos.writeCompactShort(this.values.size());
+        for(String value : this.values) {
+            mos.writeCompactString(value);
+        }
+    }
+
+    private record StateKey(NamespaceID material, String[] keys, String[] values) {
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) { return true; }
+            if(!(o instanceof StateKey other)) { return false; }
+
+            return this.material.equals(other.material) &&
+                    Arrays.equals(this.keys, other.keys) &&
+                    Arrays.equals(this.values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.material.hashCode();
+            result = 31 * result + Arrays.hashCode(this.keys);
+            result = 31 * result + Arrays.hashCode(this.values);
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+package cc.minetale.magma.palette;
+
+import cc.minetale.magma.MagmaUtils;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Values of a section stored as indices into a section-local palette, packed into longs like Minestom's {@linkplain net.minestom.server.instance.palette.Palette}.
+ * Entries never span two longs and a palette with a single value doesn't store any indices.
+ * Not thread-safe.
+ */
+public class SectionPalette {
+
+    private final int dimension;
+    private final int size;
+
+    private int[] values;
+    private int valueCount;
+    private final Int2IntOpenHashMap valueToIndex;
+
+    private int bitsPerEntry;
+    private long[] data;
+
+    /**
+     * @param dimension Length of one side of the section, 16 for blocks and 4 for biomes
+     * @param defaultValue Value every entry starts with
+     */
+    public SectionPalette(int dimension, int defaultValue) {
+        this.dimension = dimension;
+        this.size = dimension * dimension * dimension;
+
+        this.values = new int[] { defaultValue };
+        this.valueCount = 1;
+
+        this.valueToIndex = new Int2IntOpenHashMap();
+        this.valueToIndex.defaultReturnValue(-1);
+        this.valueToIndex.put(defaultValue, 0);
+
+        this.bitsPerEntry = 0;
+        this.data = new long[0];
+    }
+
+    /**
+     * @param values Section-local palette, at least one value
+     * @param data Indices packed with {@linkplain #bitsFor(int)} bits for the palette's size
+     */
+    public SectionPalette(int dimension, int[] values, long[] data) {
+        this.dimension = dimension;
+        this.size = dimension * dimension * dimension;
+
+        this.values = values;
+        this.valueCount = values.length;
+
+        this.valueToIndex = new Int2IntOpenHashMap(values.length);
+        this.valueToIndex.defaultReturnValue(-1);
+        for(int i = 0; i < values.length; i++) {
+            this.valueToIndex.putIfAbsent(values[i], i);
+        }
+
+        this.bitsPerEntry = bitsFor(values.length);
+        this.data = data;
+    }
+
+    public int get(int index) {
+        return this.values[getPaletteIndex(index)];
+    }
+
+    public int get(int x, int y, int z) {
+        return get(MagmaUtils.getSectionIndex(this.dimension, x, y, z));
+    }
+
+    /**
+     * @return Index of the entry's value within the section-local palette
+     */
+    public int getPaletteIndex(int index) {
+        if(this.bitsPerEntry == 0) { return 0; }
+
+        final int valuesPerLong = 64 / this.bitsPerEntry;
+        final int longIndex = index / valuesPerLong;
+        final int bitIndex = (index - longIndex * valuesPerLong) * this.bitsPerEntry;
+
+        return (int) (this.data[longIndex] >>> bitIndex) & ((1 << this.bitsPerEntry) - 1);
+    }
+
+    public void set(int index, int value) {
+        int paletteIndex = this.valueToIndex.get(value);
+        if(paletteIndex == -1)
+            paletteIndex = addValue(value);
+
+        if(this.bitsPerEntry == 0) { return; }
+
+        final int valuesPerLong = 64 / this.bitsPerEntry;
+        final int longIndex = index / valuesPerLong;
+        final int bitIndex = (index - longIndex * valuesPerLong) * this.bitsPerEntry;
+        final long mask = (1L << this.bitsPerEntry) - 1;
+
+        this.data[longIndex] = (this.data[longIndex] & ~(mask << bitIndex)) | ((long) paletteIndex << bitIndex);
+    }
+
+    public void set(int x, int y, int z, int value) {
+        set(MagmaUtils.getSectionIndex(this.dimension, x, y, z), value);
+    }
+
+    private int addValue(int value) {
+        if(this.valueCount == this.values.length)
+            this.values = Arrays.copyOf(this.values, this.valueCount * 2);
+
+        int paletteIndex = this.valueCount++;
+        this.values[paletteIndex] = value;
+        this.valueToIndex.put(value, paletteIndex);
+
+        int bits = bitsFor(this.valueCount);
+        if(bits != this.bitsPerEntry)
+            resize(bits);
+
+        return paletteIndex;
+    }
+
+    private void resize(int newBitsPerEntry) {
+        var newData = new long[dataLength(this.size, newBitsPerEntry)];
+
+        if(this.bitsPerEntry != 0) {
+            final int valuesPerLong = 64 / newBitsPerEntry;
+            for(int i = 0; i < this.size; i++) {
+                final int longIndex = i / valuesPerLong;
+                final int bitIndex = (i - longIndex * valuesPerLong) * newBitsPerEntry;
+                newData[longIndex] |= (long) getPaletteIndex(i) << bitIndex;
+            }
+        }
+
+        this.bitsPerEntry = newBitsPerEntry;
+        this.data = newData;
+    }
+
+    /**
+     * @return This palette if every value is in use, otherwise a copy without the unused values and with fewer bits per entry
+     */
+    public SectionPalette compacted() {
+        if(this.bitsPerEntry == 0) { return this; }
+
+        var used = new boolean[this.valueCount];
+        int usedCount = 0;
+        for(int i = 0; i < this.size && usedCount < this.valueCount; i++) {
+            int paletteIndex = getPaletteIndex(i);
+            if(!used[paletteIndex]) {
+                used[paletteIndex] = true;
+                usedCount++;
+            }
+        }
+
+        if(usedCount == this.valueCount) { return this; }
+
+        var values = new int[usedCount];
+        var remapped = new int[this.valueCount];
+        for(int i = 0, j = 0; i < this.valueCount; i++) {
+            if(!used[i]) { continue; }
+            values[j] = this.values[i];
+            remapped[i] = j++;
+        }
+
+        final int bits = bitsFor(usedCount);
+        var data = new long[dataLength(this.size, bits)];
+
+        if(bits != 0) {
+            final int valuesPerLong = 64 / bits;
+            for(int i = 0; i < this.size; i++) {
+                final int longIndex = i / valuesPerLong;
+                final int bitIndex = (i - longIndex * valuesPerLong) * bits;
+                data[longIndex] |= (long) remapped[getPaletteIndex(i)] << bitIndex;
+            }
+        }
+
+        return new SectionPalette(this.dimension, values, data);
+    }
+
+    /**
+     * @return How many entries use each value of the section-local palette, by palette index
+     */
+    public int[] getValueCounts() {
+        var counts = new int[this.valueCount];
+        if(this.bitsPerEntry == 0) {
+            counts[0] = this.size;
+            return counts;
+        }
+
+        for(int i = 0; i < this.size; i++) {
+            counts[getPaletteIndex(i)]++;
+        }
+
+        return counts;
+    }
+
+    /**
+     * @return Whether every entry has the same value
+     */
+    public boolean isUniform() {
+        return this.valueCount == 1;
+    }
+
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getPaletteSize() {
+        return this.valueCount;
+    }
+
+    public int getValue(int paletteIndex) {
+        return this.values[paletteIndex];
+    }
+
+    public int[] getValues() {
+        return Arrays.copyOf(this.values, this.valueCount);
+    }
+
+    public int getBitsPerEntry() {
+        return this.bitsPerEntry;
+    }
+
+    public long[] getData() {
+        return this.data;
+    }
+
+    /**
+     * @return Bits needed to store an index into a palette of the given size, 0 for a single value
+     */
+    public static int bitsFor(int paletteSize) {
+        if(paletteSize <= 1) { return 0; }
+        return 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+    }
+
+    public static int dataLength(int size, int bitsPerEntry) {
+        if(bitsPerEntry == 0) { return 0; }
+
+        final int valuesPerLong = 64 / bitsPerEntry;
+        return (size + valuesPerLong - 1) / valuesPerLong;
+    }
+
+}
@@ -1,127 +1,249 @@
 package cc.minetale.magma.palette;
 
+import cc.minetale.magma.MagmaFormat;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
 import cc.minetale.magma.type.MagmaMaterial;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectMaps;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
-import lombok.Getter;
+import it.unimi.dsi.fastutil.shorts.Short2ShortOpenHashMap;
 import net.minestom.server.instance.block.Block;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
-@Getter
+/**
+ * States of a single material by their index. Readers work on an immutable snapshot and never lock,
+ * writers publish a new snapshot with a CAS. Materials rarely have more than a few dozen states in a region,
+ * so copying the snapshot on insert is cheap compared to a lock on every lookup.
+ */
 public class StatePalette {
 
-    private final Short2ObjectMap<Short> palette;
+    private final AtomicReference<Snapshot> snapshot;
+    private volatile Resolved resolved; //Blocks of the latest snapshot, see #getResolvedBlockAt(short)
 
     public StatePalette(int expected) {
-        this.palette = new Short2ObjectOpenHashMap<>(expected);
+        this.snapshot = new AtomicReference<>(Snapshot.empty(expected));
     }
 
     public StatePalette() {
-        this.palette = new Short2ObjectOpenHashMap<>();
+        this(4);
     }
 
-    //TODO Fix docs
     /**
-     * Tries to find stateId in the given Magma palette and inserts the provided one if not found.
+     * Tries to find stateId in the palette and inserts the provided one if not found.
      * @param stateId stateId to find the index for
      * @return The index of an already inserted stateId or a newly created index for the provided stateId if none were found
      */
     public short findInPaletteOrAdd(short stateId) {
-        synchronized(this.palette) {
-            for(var ent : Short2ObjectMaps.fastIterable(this.palette)) {
-                short existingState = ent.getValue();
-                if(existingState == stateId) { return ent.getShortKey(); }
-            }
+        short index = this.snapshot.get().indexOf(stateId);
+        if(index != -1) { return index; }
+
+        while(true) {
+            var current = this.snapshot.get();
+
+            index = current.indexOf(stateId);
+            if(index != -1) { return index; }
 
-            return addState(stateId);
+            index = current.size;
+            if(this.snapshot.compareAndSet(current, current.with(index, stateId)))
+                return index;
         }
     }
 
     public short addState(short stateId) {
-        synchronized(this.palette) {
-            short newIndex = getSize();
-            setStateAt(newIndex, stateId);
-            return newIndex;
+        while(true) {
+            var current = this.snapshot.get();
+
+            short index = current.size;
+            if(this.snapshot.compareAndSet(current, current.with(index, stateId)))
+                return index;
         }
     }
 
     public boolean addStateIfNotFound(short stateId) {
-        synchronized(this.palette) {
-            for(var existingState : this.palette.values()) {
-                if(existingState == stateId) { return false; }
-            }
+        while(true) {
+            var current = this.snapshot.get();
+            if(current.indexOf(stateId) != -1) { return false; }
 
-            short newIndex = getSize();
-            setStateAt(newIndex, stateId);
-
-            return true;
+            if(this.snapshot.compareAndSet(current, current.with(current.size, stateId)))
+                return true;
         }
     }
 
     public short getStateAt(short index) {
-        return this.palette.get(index);
+        return this.snapshot.get().states[index];
+    }
+
+    /**
+     * @return Block of the state at the given index, resolved once for all the states and reused until a state gets added
+     */
+    public Block getResolvedBlockAt(short index) {
+        return resolve()[index];
+    }
+
+    /**
+     * Resolves every state to its {@linkplain Block}.
+     * @return Blocks by the index of their state
+     */
+    public Block[] resolve() {
+        var current = this.snapshot.get();
+
+        var resolved = this.resolved;
+        if(resolved != null && resolved.snapshot == current) { return resolved.blocks; }
+
+        var blocks = new Block[current.size];
+        for(int i = 0; i < blocks.length; i++) {
+            blocks[i] = Block.fromStateId(current.states[i]);
+        }
+
+        this.resolved = new Resolved(current, blocks);
+        return blocks;
     }
 
     public void setStateAt(short index, short stateId) {
-        this.palette.put(index, Short.valueOf(stateId));
+        while(true) {
+            var current = this.snapshot.get();
+            if(this.snapshot.compareAndSet(current, current.with(index, stateId)))
+                return;
+        }
     }
 
     public short getSize() {
-        return (short) this.palette.size();
+        return this.snapshot.get().size;
+    }
+
+    /**
+     * @return Copy of the states by their index
+     */
+    public short[] getAll() {
+        var current = this.snapshot.get();
+        return Arrays.copyOf(current.states, current.size);
     }
 
-    public Short2ObjectMap<Short> getAll() {
-        return this.palette;
+    private record Resolved(Snapshot snapshot, Block[] blocks) {}
+
+    private record Snapshot(short[] states, short size, Short2ShortOpenHashMap indices) {
+
+        static Snapshot empty(int expected) {
+            var indices = new Short2ShortOpenHashMap(expected);
+            indices.defaultReturnValue((short) -1);
+            return new Snapshot(new short[expected], (short) 0, indices);
+        }
+
+        short indexOf(short stateId) {
+            return this.indices.get(stateId);
+        }
+
+        Snapshot with(short index, short stateId) {
+            var states = Arrays.copyOf(this.states, Math.max(this.states.length, index + 1));
+            states[index] = stateId;
+
+            var indices = new Short2ShortOpenHashMap(this.indices);
+            indices.defaultReturnValue((short) -1);
+            indices.putIfAbsent(stateId, index);
+
+            return new Snapshot(states, (short) Math.max(this.size, index + 1), indices);
+        }
+
     }
 
-    public static StatePalette read(MagmaInputStream mis, MagmaMaterial material) throws IOException {
+    /**
+     * Reads the states as tuples of value indices, in the order of the material's keys.
+     * See {@linkplain #write(MagmaOutputStream, PropertyDictionary, MagmaMaterial)}.
+     */
+    public static StatePalette read(MagmaInputStream mis, PropertyDictionary dictionary, MagmaMaterial material) throws IOException {
+        if(mis.has(MagmaFormat.LEGACY))
+            return readLegacy(mis, material);
+
+        Block block = material.getMaterial();
+
+        short keyCount = mis.readCompactShort();
+        var keys = new String[keyCount];
+        for(short i = 0; i < keyCount; i++) {
+            keys[i] = dictionary.getKey(mis.readCompactShort());
+        }
+
+        short combinations = mis.readCompactShort();
+
+        StatePalette palette = new StatePalette(combinations);
+        for(short i = 0; i < combinations; i++) {
+            var values = new String[keyCount];
+            for(short j = 0; j < keyCount; j++) {
+                values[j] = dictionary.getValue(mis.readCompactShort());
+            }
+
+            //Unknown materials don't have the properties, every state falls back to the barrier
+            palette.setStateAt(i, material.isKnown() ? PropertyDictionary.resolveState(block, keys, values) : block.stateId());
+        }
+
+        return palette;
+    }
+
+    /**
+     * Reads the states of a legacy region, each one as its key and value strings. Legacy regions didn't store how many properties
+     * a state has, so the material's amount in this version is used.
+     */
+    private static StatePalette readLegacy(MagmaInputStream mis, MagmaMaterial material) throws IOException {
         Block block = material.getMaterial();
 
         var size = material.getPropertiesAmount();
         short combinations = mis.readShort();
 
-        StatePalette palette = new StatePalette();
+        StatePalette palette = new StatePalette(combinations);
         for(short i = 0; i < combinations; i++) {
-            try {
-                Map<String, String> properties = new HashMap<>();
-                for(short j = 0; j < size; j++) {
-                    String key = mis.readStringShort();
-                    String value = mis.readStringShort();
-                    properties.put(key, value);
-                }
-
-                short stateId = block.withProperties(properties).stateId();
-
-                palette.setStateAt(i, stateId);
-            } catch(IOException e) {
-                e.printStackTrace();
+            var keys = new String[size];
+            var values = new String[size];
+            for(short j = 0; j < size; j++) {
+                keys[j] = mis.readStringShort();
+                values[j] = mis.readStringShort();
             }
+
+            palette.setStateAt(i, material.isKnown() ? PropertyDictionary.resolveState(block, keys, values) : block.stateId());
         }
 
         return palette;
     }
 
-    public void write(MagmaOutputStream mos) throws IOException {
-        var size = getSize();
-        mos.writeShort(size);
+    /**
+     * Writes the material's property keys once, followed by each state as indices of its values within the dictionary.
+     */
+    public void write(MagmaOutputStream mos, PropertyDictionary dictionary, MagmaMaterial material) throws IOException {
+        var keys = material.getMaterial().properties().keySet().toArray(new String[0]);
+
+        mos.writeCompactShort(keys.length);
+        for(String key : keys) {
+            mos.writeCompactShort(dictionary.keyIndex(key));
+        }
 
-        for(short i = 0; i < size; i++) {
-            short stateId = getStateAt(i);
+        var states = getAll();
+        mos.writeCompactShort(states.length);
 
+        for(short stateId : states) {
             var block = Block.fromStateId(stateId);
-            if(block == null) { continue; }
+            if(block == null) { block = material.getMaterial(); } //Keeps the indices aligned, the state falls back to the default one
 
             Map<String, String> properties = block.properties();
+            for(String key : keys) {
+                mos.writeCompactShort(dictionary.valueIndex(properties.get(key)));
+            }
+        }
+    }
+
+    /**
+     * Adds the material's keys and the values of every state to the dictionary, has to be done for every material before writing the dictionary.
+     */
+    public void collectProperties(PropertyDictionary dictionary, MagmaMaterial material) {
+        for(String key : material.getMaterial().properties().keySet()) {
+            dictionary.keyIndex(key);
+        }
+
+        for(short stateId : getAll()) {
+            var block = Block.fromStateId(stateId);
+            if(block == null) { block = material.getMaterial(); }
 
-            for(Map.Entry<String, String> ent : properties.entrySet()) {
-                mos.writeStringShort(ent.getKey());
-                mos.writeStringShort(ent.getValue());
+            for(String value : block.properties().values()) {
+                dictionary.valueIndex(value);
             }
         }
     }
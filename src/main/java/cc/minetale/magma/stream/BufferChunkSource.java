@@ -0,0 +1,26 @@
+package cc.minetale.magma.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serves chunk frames from a buffer holding all of them, either a heap copy or a memory-mapped file.
+ * Frames within a direct buffer get decompressed straight into direct buffers.
+ */
+public class BufferChunkSource implements ChunkSource {
+
+    private final ByteBuffer frames;
+
+    public BufferChunkSource(ByteBuffer frames) {
+        this.frames = frames;
+    }
+
+    @Override
+    public ByteBuffer readFrame(int offset, int length, GrowableBuffer scratch) {
+        //Absolute slice, safe to use from multiple threads at once
+        return this.frames.slice(offset, length);
+    }
+
+    @Override
+    public void close() {}
+
+}
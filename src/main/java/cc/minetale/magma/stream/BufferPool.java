@@ -0,0 +1,66 @@
+package cc.minetale.magma.stream;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the buffers used for serializing regions and reading chunk frames around, so periodic saves and chunk loads
+ * reuse the same memory instead of allocating it anew every time. Buffers are borrowed, not tied to a thread.
+ */
+public final class BufferPool {
+
+    private BufferPool() {}
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final int MAX_POOLED = 16;
+    public static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024; //Buffers grown past this are left to the GC
+    public static final long MAX_RETAINED_BYTES = 16 * 1024 * 1024; //Capacity of every pooled buffer combined
+
+    private static final ConcurrentLinkedQueue<GrowableBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+
+    /**
+     * @return An empty buffer, has to be given back with {@linkplain #release(GrowableBuffer)} once it's no longer used
+     */
+    public static GrowableBuffer acquire() {
+        var buffer = POOL.poll();
+        if(buffer == null) { return new GrowableBuffer(INITIAL_CAPACITY); }
+
+        POOLED.decrementAndGet();
+        POOLED_BYTES.addAndGet(-buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back, it's dropped instead if it grew too large or the pool is already holding its budget.
+     */
+    public static void release(GrowableBuffer buffer) {
+        int capacity = buffer.capacity();
+        if(capacity > MAX_RETAINED_CAPACITY) { return; }
+
+        if(POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+
+        if(POOLED_BYTES.addAndGet(capacity) > MAX_RETAINED_BYTES) {
+            POOLED_BYTES.addAndGet(-capacity);
+            POOLED.decrementAndGet();
+            return;
+        }
+
+        buffer.reset();
+        POOL.offer(buffer);
+    }
+
+    /**
+     * @return Combined capacity of the buffers waiting in the pool
+     */
+    public static long getRetainedBytes() {
+        return POOLED_BYTES.get();
+    }
+
+}
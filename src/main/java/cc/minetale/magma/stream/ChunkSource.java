@@ -0,0 +1,30 @@
+package cc.minetale.magma.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the compressed chunk frames of an indexed region.
+ * Implementations have to allow concurrent reads, chunks can be requested from multiple loading threads at once.
+ */
+public interface ChunkSource extends Closeable {
+
+    /**
+     * @param offset Offset of the frame relative to the first frame
+     * @param length Length of the frame in bytes, see {@linkplain MagmaOutputStream#writeCompressed(int, byte[])}
+     * @param scratch Buffer the frame can be read into, borrowed by the caller for as long as it uses the frame
+     * @return The compressed frame, the region decompresses it with its own codec and dictionary
+     */
+    ByteBuffer readFrame(int offset, int length, GrowableBuffer scratch) throws IOException;
+
+    @FunctionalInterface
+    interface Opener {
+        /**
+         * Called once the offset table has been read.
+         * @param mis Stream positioned at the first frame
+         */
+        ChunkSource open(MagmaInputStream mis) throws IOException;
+    }
+
+}
@@ -0,0 +1,63 @@
+package cc.minetale.magma.stream;
+
+import com.github.luben.zstd.Zstd;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How regions get compressed when they're written, doesn't affect reading.
+ *
+ * @param codec Codec every frame is compressed with, its ID gets recorded in the region header
+ * @param level Compression level on zstd's scale, from {@linkplain Zstd#minCompressionLevel()} to {@linkplain Zstd#maxCompressionLevel()}
+ * @param longWindowLog Window log used for long distance matching, 0 to disable it. Helps large regions with repeating builds, zstd only.
+ * @param workers Threads zstd compresses each frame with, 0 compresses on the calling thread
+ * @param dictionary Trained dictionary every frame is compressed with, its ID gets recorded in the region header
+ */
+public record CompressionOptions(MagmaCodec codec, int level, int longWindowLog, int workers, @Nullable MagmaDictionary dictionary) {
+
+    public static final CompressionOptions DEFAULT = new CompressionOptions(MagmaCodecs.ZSTD, Zstd.defaultCompressionLevel(), 0, 0, null);
+
+    //Frequent autosaves
+    public static final CompressionOptions FAST = new CompressionOptions(MagmaCodecs.ZSTD, 1, 0, 0, null);
+
+    //Maps that are written once and distributed
+    public static final CompressionOptions MAX = new CompressionOptions(MagmaCodecs.ZSTD, 19, 27, 0, null);
+
+    //Regions that are reloaded often, e.g. hot reloading maps from memory
+    public static final CompressionOptions LZ4 = new CompressionOptions(MagmaCodecs.LZ4, 1, 0, 0, null);
+    public static final CompressionOptions UNCOMPRESSED = new CompressionOptions(MagmaCodecs.NONE, 1, 0, 0, null);
+
+    public CompressionOptions {
+        if(level < Zstd.minCompressionLevel() || level > Zstd.maxCompressionLevel())
+            throw new IllegalArgumentException("Compression level out of range: " + level);
+
+        if(longWindowLog < 0 || workers < 0)
+            throw new IllegalArgumentException("Window log and workers can't be negative");
+
+        if(dictionary != null && !codec.supportsDictionaries())
+            throw new IllegalArgumentException("Codec " + codec.getName() + " doesn't support dictionaries");
+    }
+
+    public CompressionOptions withCodec(MagmaCodec codec) {
+        return new CompressionOptions(codec, this.level, this.longWindowLog, this.workers, this.dictionary);
+    }
+
+    public CompressionOptions withLevel(int level) {
+        return new CompressionOptions(this.codec, level, this.longWindowLog, this.workers, this.dictionary);
+    }
+
+    public CompressionOptions withLongDistanceMatching(int windowLog) {
+        return new CompressionOptions(this.codec, this.level, windowLog, this.workers, this.dictionary);
+    }
+
+    public CompressionOptions withWorkers(int workers) {
+        return new CompressionOptions(this.codec, this.level, this.longWindowLog, workers, this.dictionary);
+    }
+
+    /**
+     * @param dictionary Dictionary to compress with, null to compress without one
+     */
+    public CompressionOptions withDictionary(@Nullable MagmaDictionary dictionary) {
+        return new CompressionOptions(this.codec, this.level, this.longWindowLog, this.workers, dictionary);
+    }
+
+}
@@ -0,0 +1,44 @@
+package cc.minetale.magma.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads chunk frames with positional reads, so only the requested frames are ever read from the disk.
+ */
+public class FileChunkSource implements ChunkSource {
+
+    private final FileChannel channel;
+    private final long base; //Position of the first frame within the file
+
+    public FileChunkSource(FileChannel channel, long base) {
+        this.channel = channel;
+        this.base = base;
+    }
+
+    @Override
+    public ByteBuffer readFrame(int offset, int length, GrowableBuffer scratch) throws IOException {
+        //Compressed frames only live until they're decompressed, the scratch buffer comes from the caller's pool
+        scratch.reset();
+        scratch.ensureCapacity(length);
+
+        var buffer = ByteBuffer.wrap(scratch.array(), 0, length);
+        var position = this.base + offset;
+
+        while(buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position + buffer.position());
+            if(read == -1) { throw new EOFException(); }
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+}
@@ -0,0 +1,85 @@
+package cc.minetale.magma.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Unsynchronized, growable byte buffer. Unlike {@linkplain java.io.ByteArrayOutputStream} it exposes its backing array,
+ * so the written data can be compressed or copied elsewhere without an intermediate copy, and written ints can be patched afterwards.
+ */
+public class GrowableBuffer extends OutputStream {
+
+    private byte[] data;
+    private int size;
+
+    public GrowableBuffer(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    public GrowableBuffer() {
+        this(256);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(this.size + 1);
+        this.data[this.size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(this.size + length);
+        System.arraycopy(bytes, offset, this.data, this.size, length);
+        this.size += length;
+    }
+
+    /**
+     * Overwrites an already written int, see {@linkplain MagmaOutputStream#beginLength()}.
+     */
+    public void putInt(int position, int value) {
+        if(position < 0 || position + Integer.BYTES > this.size)
+            throw new IndexOutOfBoundsException(position);
+
+        this.data[position]     = (byte) (value >>> 24);
+        this.data[position + 1] = (byte) (value >>> 16);
+        this.data[position + 2] = (byte) (value >>> 8);
+        this.data[position + 3] = (byte) value;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if(capacity <= this.data.length) { return; }
+
+        //Grows by half, never less than asked for
+        int newCapacity = Math.max(capacity, this.data.length + (this.data.length >> 1));
+        this.data = Arrays.copyOf(this.data, newCapacity);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.data, 0, this.size);
+    }
+
+    public void reset() {
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int capacity() {
+        return this.data.length;
+    }
+
+    /**
+     * @return Backing array, only the first {@linkplain #size()} bytes are valid and it's replaced once the buffer grows
+     */
+    public byte[] array() {
+        return this.data;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.data, this.size);
+    }
+
+}
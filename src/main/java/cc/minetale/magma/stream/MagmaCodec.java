@@ -0,0 +1,66 @@
+package cc.minetale.magma.stream;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression algorithm the frames of a region are written with, identified in the region header by its ID.
+ * Implementations have to be thread-safe. Custom codecs are registered through {@linkplain MagmaCodecs#register(MagmaCodec)}
+ * or provided as a {@linkplain java.util.ServiceLoader} service.
+ */
+public interface MagmaCodec {
+
+    /**
+     * @return ID stored in the region header, from 0 to 255
+     */
+    int getId();
+
+    String getName();
+
+    /**
+     * @return Room the compressed data can take up at most
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return Length of the compressed data
+     */
+    int compress(byte[] destination, int destinationOffset, int destinationLength,
+                 byte[] source, int sourceOffset, int sourceLength, CompressionOptions options) throws IOException;
+
+    /**
+     * @param dictionary Dictionary the data was compressed with, null if it wasn't compressed with one
+     * @return Length of the decompressed data
+     */
+    int decompress(byte[] destination, int destinationOffset, int destinationLength,
+                   byte[] source, int sourceOffset, int sourceLength, @Nullable MagmaDictionary dictionary) throws IOException;
+
+    /**
+     * Decompresses between direct buffers, their positions are left untouched.
+     * Codecs without native support for direct buffers go through heap copies.
+     *
+     * @param dictionary Dictionary the data was compressed with, null if it wasn't compressed with one
+     * @return Length of the decompressed data
+     */
+    default int decompress(ByteBuffer destination, int destinationLength, ByteBuffer source, int sourceLength,
+                           @Nullable MagmaDictionary dictionary) throws IOException {
+        byte[] compressed = new byte[sourceLength];
+        source.get(source.position(), compressed);
+
+        byte[] data = new byte[destinationLength];
+        int size = decompress(data, 0, destinationLength, compressed, 0, sourceLength, dictionary);
+
+        destination.put(destination.position(), data, 0, size);
+        return size;
+    }
+
+    /**
+     * @return Whether frames can be compressed with a {@linkplain MagmaDictionary}
+     */
+    default boolean supportsDictionaries() {
+        return false;
+    }
+
+}
@@ -0,0 +1,56 @@
+package cc.minetale.magma.stream;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codecs regions can be compressed with, looked up by the ID in the region header.
+ */
+public final class MagmaCodecs {
+
+    private MagmaCodecs() {}
+
+    private static final Map<Integer, MagmaCodec> REGISTRY = new ConcurrentHashMap<>();
+
+    //Fastest to load, for regions that are kept in memory
+    public static final MagmaCodec NONE = register(new NoneCodec());
+
+    //Best ratio, supports dictionaries. Regions without a codec in their header are always zstd.
+    public static final MagmaCodec ZSTD = register(new ZstdCodec());
+
+    //Much faster to decompress than zstd at a worse ratio, e.g. for hot reloading maps
+    public static final MagmaCodec LZ4 = register(new Lz4Codec());
+
+    static {
+        for(MagmaCodec codec : ServiceLoader.load(MagmaCodec.class)) {
+            register(codec);
+        }
+    }
+
+    /**
+     * @return The codec
+     * @throws IllegalArgumentException if the ID is out of range or taken by another codec
+     */
+    public static MagmaCodec register(MagmaCodec codec) {
+        int id = codec.getId();
+        if(id < 0 || id > 0xFF)
+            throw new IllegalArgumentException("Codec ID out of range: " + id);
+
+        var existing = REGISTRY.putIfAbsent(id, codec);
+        if(existing != null && existing != codec)
+            throw new IllegalArgumentException("Codec ID " + id + " is already taken by " + existing.getName());
+
+        return codec;
+    }
+
+    /**
+     * @return The registered codec with the ID, null if there isn't one
+     */
+    public static @Nullable MagmaCodec get(int id) {
+        return REGISTRY.get(id);
+    }
+
+}
@@ -0,0 +1,108 @@
+package cc.minetale.magma.stream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictDecompress;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trained zstd dictionary, shared by regions with similar palettes and sections like a library of minigame maps.
+ * Regions only store the ID of the dictionary they were compressed with, it has to be registered
+ * through {@linkplain #register(MagmaDictionary)} before they're read.
+ */
+public final class MagmaDictionary {
+
+    private static final Map<Integer, MagmaDictionary> REGISTRY = new ConcurrentHashMap<>();
+
+    private final int id;
+    private final byte[] bytes;
+
+    //Digested once and shared by the decompression contexts of every thread
+    private volatile ZstdDictDecompress decompressDictionary;
+
+    private MagmaDictionary(int id, byte[] bytes) {
+        this.id = id;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param bytes Dictionary in the zstd format, e.g. from {@linkplain cc.minetale.magma.MagmaDictionaryTrainer}
+     * @throws IllegalArgumentException if the bytes aren't a zstd dictionary with an ID
+     */
+    public static MagmaDictionary of(byte[] bytes) {
+        int id = (int) Zstd.getDictIdFromDict(bytes);
+        if(id == 0)
+            throw new IllegalArgumentException("Not a zstd dictionary");
+
+        return new MagmaDictionary(id, bytes.clone());
+    }
+
+    public static MagmaDictionary load(Path path) throws IOException {
+        return of(Files.readAllBytes(path));
+    }
+
+    public void save(Path path) throws IOException {
+        Files.write(path, this.bytes);
+    }
+
+    /**
+     * Makes the dictionary available to regions that were compressed with it, replacing any dictionary with the same ID.
+     * @return The dictionary
+     */
+    public static MagmaDictionary register(MagmaDictionary dictionary) {
+        REGISTRY.put(dictionary.id, dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Also closes the zstd contexts that have the dictionary loaded.
+     */
+    public static void unregister(MagmaDictionary dictionary) {
+        REGISTRY.remove(dictionary.id, dictionary);
+        ZstdCodec.releaseContexts(dictionary);
+    }
+
+    /**
+     * @return The registered dictionary with the ID, null if there isn't one
+     */
+    public static @Nullable MagmaDictionary get(int id) {
+        return REGISTRY.get(id);
+    }
+
+    /**
+     * @return ID zstd stores in the dictionary and in every frame compressed with it, unsigned
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    public byte[] toByteArray() {
+        return this.bytes.clone();
+    }
+
+    byte[] bytes() {
+        return this.bytes;
+    }
+
+    ZstdDictDecompress decompressDictionary() {
+        var dictionary = this.decompressDictionary;
+        if(dictionary == null) {
+            //Digesting twice from two threads is harmless
+            dictionary = new ZstdDictDecompress(this.bytes);
+            this.decompressDictionary = dictionary;
+        }
+
+        return dictionary;
+    }
+
+    @Override
+    public String toString() {
+        return "MagmaDictionary[id=" + Integer.toUnsignedString(this.id) + ", size=" + this.bytes.length + "]";
+    }
+
+}
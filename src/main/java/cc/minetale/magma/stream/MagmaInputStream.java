@@ -1,23 +1,242 @@
 package cc.minetale.magma.stream;
 
-import com.github.luben.zstd.Zstd;
+import cc.minetale.magma.MagmaFormat;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.nbt.CompressedProcesser;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+import org.jglrxavpok.hephaistos.nbt.NBTReader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.BitSet;
 
-public class MagmaInputStream extends DataInputStream {
+/**
+ * Decoder for everything Magma writes. Streams over bytes or a {@linkplain ByteBuffer} read primitives and arrays straight from the buffer
+ * and hand out nested data as views of it, streams over any other {@linkplain InputStream} fall back to a {@linkplain DataInputStream}.
+ * Not thread-safe, but views can be read independently of each other.
+ */
+public class MagmaInputStream extends InputStream implements DataInput {
+
+    private final @Nullable ByteBuffer buffer;
+    private final @Nullable DataInputStream in; //Only used if there's no buffer
+
+    //Format flags of the region the data belongs to, e.g. whether the compact primitives use varints and UTF-8
+    private int flags;
+
+    //Codec and dictionary compressed data was compressed with, see MagmaFormat#DICTIONARY
+    private MagmaCodec codec = MagmaCodecs.ZSTD;
+    private @Nullable MagmaDictionary dictionary;
 
     public MagmaInputStream(InputStream in) {
-        super(in);
+        this.buffer = null;
+        this.in = new DataInputStream(in);
     }
 
     public MagmaInputStream(byte[] bytes) {
-        super(new ByteArrayInputStream(bytes));
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    public MagmaInputStream(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+        this.in = null;
+    }
+
+    /**
+     * @return The buffer with enough bytes remaining, null if the stream isn't buffer-backed
+     */
+    private @Nullable ByteBuffer require(int bytes) throws EOFException {
+        if(this.buffer != null && this.buffer.remaining() < bytes)
+            throw new EOFException();
+
+        return this.buffer;
+    }
+
+    /**
+     * @return A view of the next {@code length} bytes, the stream skips past them
+     */
+    private ByteBuffer slice(int length) throws EOFException {
+        var buffer = require(length);
+
+        var position = buffer.position();
+        var slice = buffer.slice(position, length);
+
+        buffer.position(position + length);
+        return slice;
+    }
+
+    public boolean isBuffered() {
+        return this.buffer != null;
+    }
+
+    //InputStream
+
+    @Override
+    public int read() throws IOException {
+        if(this.buffer == null) { return this.in.read(); }
+
+        if(!this.buffer.hasRemaining()) { return -1; }
+        return this.buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if(this.buffer == null) { return this.in.read(bytes, offset, length); }
+
+        if(length == 0) { return 0; }
+        if(!this.buffer.hasRemaining()) { return -1; }
+
+        length = Math.min(length, this.buffer.remaining());
+        this.buffer.get(bytes, offset, length);
+
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if(this.buffer == null) { return this.in.skip(n); }
+
+        int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+        this.buffer.position(this.buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.buffer == null ? this.in.available() : this.buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(this.in != null)
+            this.in.close();
+    }
+
+    //DataInput
+
+    @Override
+    public void readFully(byte[] bytes) throws IOException {
+        readFully(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        var buffer = require(length);
+        if(buffer == null) {
+            this.in.readFully(bytes, offset, length);
+            return;
+        }
+
+        buffer.get(bytes, offset, length);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        return this.buffer == null ? this.in.skipBytes(n) : (int) skip(n);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
     }
 
+    @Override
+    public byte readByte() throws IOException {
+        var buffer = require(Byte.BYTES);
+        return buffer == null ? this.in.readByte() : buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        var buffer = require(Short.BYTES);
+        return buffer == null ? this.in.readShort() : buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        var buffer = require(Character.BYTES);
+        return buffer == null ? this.in.readChar() : buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        var buffer = require(Integer.BYTES);
+        return buffer == null ? this.in.readInt() : buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        var buffer = require(Long.BYTES);
+        return buffer == null ? this.in.readLong() : buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Same as {@linkplain DataInputStream#readLine()}, every byte is a character and lines end with \n, \r or \r\n.
+     * @return The line without its terminator, null at the end of the stream
+     */
+    @Override
+    @Deprecated
+    public @Nullable String readLine() throws IOException {
+        if(this.buffer == null) { return this.in.readLine(); }
+
+        if(!this.buffer.hasRemaining()) { return null; }
+
+        var line = new StringBuilder();
+        while(this.buffer.hasRemaining()) {
+            char c = (char) (this.buffer.get() & 0xFF);
+            if(c == '\n') { break; }
+
+            if(c == '\r') {
+                if(this.buffer.hasRemaining() && this.buffer.get(this.buffer.position()) == '\n')
+                    this.buffer.get();
+                break;
+            }
+
+            line.append(c);
+        }
+
+        return line.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    //Magma
+
     public int[] readIntArray(final int count) throws IOException {
         var arr = new int[count];
 
+        var buffer = require(count * Integer.BYTES);
+        if(buffer != null) {
+            buffer.asIntBuffer().get(arr);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            return arr;
+        }
+
         for (int i = 0; i < count; i++) {
             arr[i] = readInt();
         }
@@ -29,18 +248,32 @@ public class MagmaInputStream extends DataInputStream {
         return readIntArray(readInt());
     }
 
-    public byte[] readByteArray(final int length) throws IOException {
-        var arr = new byte[length];
+    public long[] readLongArray(final int count) throws IOException {
+        var arr = new long[count];
 
-        int readByteCount = read(arr);
+        var buffer = require(count * Long.BYTES);
+        if(buffer != null) {
+            buffer.asLongBuffer().get(arr);
+            buffer.position(buffer.position() + count * Long.BYTES);
+            return arr;
+        }
 
-        if (readByteCount == -1) {
-            throw new EOFException();
+        for (int i = 0; i < count; i++) {
+            arr[i] = readLong();
         }
 
         return arr;
     }
 
+    public byte[] readByteArray(final int length) throws IOException {
+        var arr = new byte[length];
+
+        //A single read() can return short when the stream is backed by a file
+        readFully(arr);
+
+        return arr;
+    }
+
     public byte[] readByteArray() throws IOException {
         var length = readInt();
         if(length == 0) { return new byte[0]; }
@@ -51,6 +284,13 @@ public class MagmaInputStream extends DataInputStream {
     public char[] readCharArray(final int length) throws IOException {
         var arr = new char[length];
 
+        var buffer = require(length * Character.BYTES);
+        if(buffer != null) {
+            buffer.asCharBuffer().get(arr);
+            buffer.position(buffer.position() + length * Character.BYTES);
+            return arr;
+        }
+
         for (int i = 0; i < length; i++) {
             arr[i] = readChar();
         }
@@ -81,9 +321,103 @@ public class MagmaInputStream extends DataInputStream {
     }
 
     /**
-     * Reads a block of zstd-compressed data. This method
+     * Reads a string written by {@linkplain MagmaOutputStream#writeStringUtf8(String)}.
+     */
+    public String readStringUtf8() throws IOException {
+        var length = readVarInt();
+
+        if(this.buffer != null && this.buffer.hasArray()) {
+            var bytes = slice(length);
+            return new String(bytes.array(), bytes.arrayOffset(), length, StandardCharsets.UTF_8);
+        }
+
+        return new String(readByteArray(length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a value written by {@linkplain MagmaOutputStream#writeVarInt(int)}.
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0) { return value; }
+        }
+
+        throw new IOException("VarInt is too big");
+    }
+
+    public short readCompactShort() throws IOException {
+        return isCompact() ? (short) readVarInt() : readShort();
+    }
+
+    public int readCompactInt() throws IOException {
+        return isCompact() ? readVarInt() : readInt();
+    }
+
+    public String readCompactString() throws IOException {
+        return isCompact() ? readStringUtf8() : readStringShort();
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    /**
+     * @param flags Format flags from {@linkplain MagmaFormat} that decide how the data is encoded
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public boolean has(int flag) {
+        return MagmaFormat.has(this.flags, flag);
+    }
+
+    public boolean isCompact() {
+        return has(MagmaFormat.COMPACT);
+    }
+
+    public MagmaCodec getCodec() {
+        return this.codec;
+    }
+
+    public void setCodec(MagmaCodec codec) {
+        this.codec = codec;
+    }
+
+    public @Nullable MagmaDictionary getDictionary() {
+        return this.dictionary;
+    }
+
+    public void setDictionary(@Nullable MagmaDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads a compound written by {@linkplain MagmaOutputStream#writeNBT(NBTCompound)}.
+     */
+    public NBTCompound readNBT() throws IOException {
+        var length = readInt();
+        InputStream nbtIn = this.buffer != null ? new MagmaInputStream(slice(length)) : new ByteArrayInputStream(readByteArray(length));
+
+        try(var reader = new NBTReader(nbtIn, CompressedProcesser.NONE)) {
+            if(reader.read() instanceof NBTCompound compound)
+                return compound;
+
+            throw new IOException("Expected an NBT compound");
+        } catch(NBTException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads a block of compressed data. This method
      * expects the following ints to be the compressed size,
-     * and uncompressed size respectively.
+     * and uncompressed size respectively. Data gets decompressed with the stream's
+     * codec and dictionary, see {@linkplain #setCodec(MagmaCodec)} and {@linkplain #setDictionary(MagmaDictionary)}.
      *
      * @return the uncompressed data
      * @throws IOException if the bytes cannot be read
@@ -93,16 +427,102 @@ public class MagmaInputStream extends DataInputStream {
         var compressedLength = readInt();
         var uncompressedLength = readInt();
 
-        byte[] compressed = readByteArray(compressedLength);
-        byte[] data = Zstd.decompress(compressed, uncompressedLength);
+        byte[] data = new byte[uncompressedLength];
+        readCompressedInto(data, compressedLength, uncompressedLength);
+
+        return data;
+    }
+
+    /**
+     * Same as {@linkplain #readCompressed()}, but decompresses into the given array instead of a new one.
+     *
+     * @param destination Array with room for at least the uncompressed data
+     * @return the length of the uncompressed data
+     * @throws IOException if the bytes cannot be read
+     * @throws IllegalArgumentException if the uncompressed length doesn't match or the array is too small
+     */
+    public int readCompressed(byte[] destination) throws IOException {
+        var compressedLength = readInt();
+        var uncompressedLength = readInt();
 
-        if (data.length != uncompressedLength) {
+        if(uncompressedLength > destination.length) {
+            throw new IllegalArgumentException("Destination is too small for the uncompressed data");
+        }
+
+        readCompressedInto(destination, compressedLength, uncompressedLength);
+        return uncompressedLength;
+    }
+
+    private void readCompressedInto(byte[] destination, int compressedLength, int uncompressedLength) throws IOException {
+        int size;
+        if(this.buffer != null && this.buffer.hasArray()) {
+            //Decompresses straight out of the backing array
+            ByteBuffer compressed = slice(compressedLength);
+            size = this.codec.decompress(destination, 0, uncompressedLength,
+                    compressed.array(), compressed.arrayOffset(), compressedLength, this.dictionary);
+        } else {
+            byte[] compressed = readByteArray(compressedLength);
+            size = this.codec.decompress(destination, 0, uncompressedLength, compressed, 0, compressedLength, this.dictionary);
+        }
+
+        if (size != uncompressedLength) {
+            throw new IllegalArgumentException("Uncompressed length doesn't match");
+        }
+    }
+
+    /**
+     * Same as {@linkplain #readCompressed()}, but a stream backed by a direct buffer (e.g. a memory-mapped file)
+     * gets decompressed straight into a direct buffer without any heap copies.
+     *
+     * @return the uncompressed data
+     * @throws IOException if the bytes cannot be read
+     * @throws IllegalArgumentException if the uncompressed length doesn't match
+     */
+    public ByteBuffer readCompressedBuffer() throws IOException {
+        if(this.buffer == null || !this.buffer.isDirect())
+            return ByteBuffer.wrap(readCompressed());
+
+        var compressedLength = readInt();
+        var uncompressedLength = readInt();
+
+        ByteBuffer compressed = slice(compressedLength);
+        ByteBuffer data = ByteBuffer.allocateDirect(uncompressedLength);
+
+        int size = this.codec.decompress(data, uncompressedLength, compressed, compressedLength, this.dictionary);
+        if (size != uncompressedLength) {
             throw new IllegalArgumentException("Uncompressed length doesn't match");
         }
 
         return data;
     }
 
+    /**
+     * Reads data written by {@linkplain MagmaOutputStream#writeMagma(MagmaOutputStream)}.
+     * Buffer-backed streams return a view of their buffer instead of copying the data.
+     */
+    public MagmaInputStream readMagma() throws IOException {
+        var length = readInt();
+
+        var mis = this.buffer != null ?
+                new MagmaInputStream(slice(length)) :
+                new MagmaInputStream(readByteArray(length));
+
+        mis.setFlags(this.flags);
+        mis.setCodec(this.codec);
+        mis.setDictionary(this.dictionary);
+        return mis;
+    }
+
+    /**
+     * @return Everything left in this stream, a view of the buffer if the stream is buffer-backed
+     */
+    public ByteBuffer readRemaining() throws IOException {
+        if(this.buffer != null)
+            return slice(this.buffer.remaining());
+
+        return ByteBuffer.wrap(readAllBytes());
+    }
+
     public byte[] readTest() throws IOException {
         var length = readInt();
         byte[] data = readByteArray(length);
@@ -110,7 +530,7 @@ public class MagmaInputStream extends DataInputStream {
     }
 
     /**
-     * Skips a block of zstd-compressed data.
+     * Skips a block of compressed data.
      *
      * @return the number of bytes skipped
      * @throws IOException if the bytes cannot be skipped
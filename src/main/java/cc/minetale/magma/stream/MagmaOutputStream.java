@@ -1,23 +1,48 @@
 package cc.minetale.magma.stream;
 
+import cc.minetale.magma.MagmaFormat;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.nbt.CompressedProcesser;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+import org.jglrxavpok.hephaistos.nbt.NBTWriter;
+
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.BitSet;
 
 public class MagmaOutputStream extends DataOutputStream {
 
+    //Format flags of the region the data belongs to, e.g. whether the compact primitives use varints and UTF-8
+    private int flags;
+
+    private final @Nullable GrowableBuffer buffer; //Only present for in-memory streams
+    private boolean pooled;
+
+    private CompressionOptions compression = CompressionOptions.DEFAULT; //Used by #writeCompressed(MagmaOutputStream)
+
     public MagmaOutputStream(OutputStream out) {
         super(out);
+        this.buffer = out instanceof GrowableBuffer growable ? growable : null;
     }
 
     public MagmaOutputStream(int size) {
-        super(new ByteArrayOutputStream(size));
+        this(new GrowableBuffer(size));
     }
 
     public MagmaOutputStream() {
-        super(new ByteArrayOutputStream());
+        this(new GrowableBuffer());
+    }
+
+    /**
+     * @return In-memory stream over a buffer from the {@linkplain BufferPool}, the buffer is given back once the stream is closed
+     */
+    public static MagmaOutputStream pooled() {
+        var mos = new MagmaOutputStream(BufferPool.acquire());
+        mos.pooled = true;
+        return mos;
     }
 
     public void writeStringByte(String string) throws IOException {
@@ -35,6 +60,87 @@ public class MagmaOutputStream extends DataOutputStream {
         writeChars(string);
     }
 
+    /**
+     * Writes the string as UTF-8 prefixed by its length in bytes as a varint.
+     */
+    public void writeStringUtf8(String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        write(bytes);
+    }
+
+    /**
+     * Writes the value in 7-bit groups, the least significant group first. Values below 128 take a single byte.
+     */
+    public void writeVarInt(int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        write(value);
+    }
+
+    /**
+     * Writes an unsigned short, as a varint if the stream is compact.
+     */
+    public void writeCompactShort(int value) throws IOException {
+        if(isCompact()) {
+            writeVarInt(value & 0xFFFF);
+        } else {
+            writeShort(value);
+        }
+    }
+
+    /**
+     * Writes a non-negative int, as a varint if the stream is compact.
+     */
+    public void writeCompactInt(int value) throws IOException {
+        if(isCompact()) {
+            writeVarInt(value);
+        } else {
+            writeInt(value);
+        }
+    }
+
+    /**
+     * Writes an identifier, as UTF-8 if the stream is compact.
+     */
+    public void writeCompactString(String string) throws IOException {
+        if(isCompact()) {
+            writeStringUtf8(string);
+        } else {
+            writeStringShort(string);
+        }
+    }
+
+    public CompressionOptions getCompression() {
+        return this.compression;
+    }
+
+    public void setCompression(CompressionOptions compression) {
+        this.compression = compression;
+    }
+
+    public int getFlags() {
+        return this.flags;
+    }
+
+    /**
+     * @param flags Format flags from {@linkplain MagmaFormat} that decide how the data is encoded
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    public boolean has(int flag) {
+        return MagmaFormat.has(this.flags, flag);
+    }
+
+    public boolean isCompact() {
+        return has(MagmaFormat.COMPACT);
+    }
+
     public void writeBitSetByte(BitSet bitSet) throws IOException {
         byte[] bytes = bitSet.toByteArray();
         writeByte(bytes.length);
@@ -58,6 +164,24 @@ public class MagmaOutputStream extends DataOutputStream {
         write(bytes);
     }
 
+    public void writeLongArray(long[] longs) throws IOException {
+        for(long value : longs) {
+            writeLong(value);
+        }
+    }
+
+    /**
+     * Writes the compound as uncompressed binary NBT, prefixed by its length.
+     */
+    public void writeNBT(NBTCompound compound) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try(var writer = new NBTWriter(bytes, CompressedProcesser.NONE)) {
+            writer.writeNamed("", compound);
+        }
+
+        writeByteArray(bytes.toByteArray());
+    }
+
     public void writeCompressed(int dataSize, byte[] compressed) throws IOException {
         writeInt(compressed.length);
         writeInt(dataSize);
@@ -65,19 +189,99 @@ public class MagmaOutputStream extends DataOutputStream {
         write(compressed);
     }
 
+    /**
+     * Compresses everything written to the in-memory stream and writes it like {@linkplain #writeCompressed(int, byte[])},
+     * straight from the stream's buffer into a pooled one.
+     */
+    public void writeCompressed(MagmaOutputStream data) throws IOException {
+        var source = data.requireBuffer();
+        var compressed = BufferPool.acquire();
+        try {
+            var codec = this.compression.codec();
+            compressed.ensureCapacity(codec.maxCompressedLength(source.size()));
+
+            int length = codec.compress(compressed.array(), 0, compressed.capacity(),
+                    source.array(), 0, source.size(), this.compression);
+
+            writeInt(length);
+            writeInt(source.size());
+
+            write(compressed.array(), 0, length);
+        } finally {
+            BufferPool.release(compressed);
+        }
+    }
+
     public void writeMagma(MagmaOutputStream mos) throws IOException {
-        var data = mos.toByteArray();
+        var data = mos.requireBuffer();
+
+        writeInt(data.size());
+        data.writeTo(this);
+    }
+
+    /**
+     * Writes a placeholder for the length of the data that follows, has to be finished with {@linkplain #endLength(int)}.
+     * Produces the same layout as {@linkplain #writeMagma(MagmaOutputStream)} without serializing the data elsewhere first.
+     *
+     * @return Position of the placeholder
+     */
+    public int beginLength() throws IOException {
+        requireBuffer();
+
+        int position = size();
+        writeInt(0);
+        return position;
+    }
+
+    /**
+     * Patches the placeholder with the length of everything written after it.
+     * @param position Position returned by {@linkplain #beginLength()}
+     */
+    public void endLength(int position) throws IOException {
+        flush();
+        requireBuffer().putInt(position, size() - position - Integer.BYTES);
+    }
+
+    private GrowableBuffer requireBuffer() throws IOException {
+        if(this.buffer == null)
+            throw new IOException("Only in-memory streams support this");
+
+        return this.buffer;
+    }
+
+    /**
+     * Discards everything written so far, allows reusing the same buffer for multiple chunks.
+     */
+    public void reset() {
+        if(this.buffer != null) {
+            this.buffer.reset();
+            this.written = 0;
+        }
+    }
 
-        writeInt(data.length);
-        write(data);
+    /**
+     * Writes everything written to the in-memory stream into {@code out} without copying it.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        requireBuffer().writeTo(out);
     }
 
     public byte[] toByteArray() {
-        if(this.out instanceof ByteArrayOutputStream) {
-            return ((ByteArrayOutputStream) this.out).toByteArray();
+        if(this.buffer != null) {
+            return this.buffer.toByteArray();
         }
 
         return new byte[0];
     }
 
+    @Override
+    public void close() throws IOException {
+        super.close();
+
+        if(this.pooled) {
+            this.pooled = false;
+            BufferPool.release(this.buffer);
+        }
+    }
+
 }
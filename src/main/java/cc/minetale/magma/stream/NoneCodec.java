@@ -0,0 +1,63 @@
+package cc.minetale.magma.stream;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores frames as they are, loading only costs a copy.
+ */
+public final class NoneCodec implements MagmaCodec {
+
+    public static final int ID = 0;
+
+    NoneCodec() {}
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "none";
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length;
+    }
+
+    @Override
+    public int compress(byte[] destination, int destinationOffset, int destinationLength,
+                        byte[] source, int sourceOffset, int sourceLength, CompressionOptions options) throws IOException {
+        return copy(destination, destinationOffset, destinationLength, source, sourceOffset, sourceLength);
+    }
+
+    @Override
+    public int decompress(byte[] destination, int destinationOffset, int destinationLength,
+                          byte[] source, int sourceOffset, int sourceLength, @Nullable MagmaDictionary dictionary) throws IOException {
+        return copy(destination, destinationOffset, destinationLength, source, sourceOffset, sourceLength);
+    }
+
+    @Override
+    public int decompress(ByteBuffer destination, int destinationLength, ByteBuffer source, int sourceLength,
+                          @Nullable MagmaDictionary dictionary) throws IOException {
+        if(sourceLength > destinationLength)
+            throw new IOException("Destination is too small");
+
+        destination.put(destination.position(), source, source.position(), sourceLength);
+        return sourceLength;
+    }
+
+    private static int copy(byte[] destination, int destinationOffset, int destinationLength,
+                            byte[] source, int sourceOffset, int sourceLength) throws IOException {
+        if(sourceLength > destinationLength)
+            throw new IOException("Destination is too small");
+
+        System.arraycopy(source, sourceOffset, destination, destinationOffset, sourceLength);
+        return sourceLength;
+    }
+
+}
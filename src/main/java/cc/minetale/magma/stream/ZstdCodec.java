@@ -0,0 +1,227 @@
+package cc.minetale.magma.stream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Compresses and decompresses frames with pooled zstd contexts, instead of creating native contexts for every frame
+ * like the static {@linkplain Zstd} methods do. Contexts are borrowed for a single frame, so they're reused
+ * no matter which thread, platform or virtual, compresses it. Everything is written into buffers provided by the caller.
+ */
+public final class ZstdCodec implements MagmaCodec {
+
+    public static final int ID = 1;
+
+    //Idle contexts kept per pool, contexts returned to a full pool are closed
+    private static final int MAX_POOLED_CONTEXTS = Runtime.getRuntime().availableProcessors() * 2;
+
+    //Sets of options with their own compression pool, usually a handful of presets. The least recently used pool is closed past this.
+    private static final int MAX_COMPRESS_POOLS = 8;
+
+    ZstdCodec() {}
+
+    //A pool per set of options, so parameters never have to be reset between frames. Access-ordered, guarded by itself.
+    private static final Map<CompressionOptions, ContextPool<ZstdCompressCtx>> COMPRESS_CONTEXTS = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CompressionOptions, ContextPool<ZstdCompressCtx>> eldest) {
+            if(size() <= MAX_COMPRESS_POOLS) { return false; }
+
+            eldest.getValue().close();
+            return true;
+        }
+    };
+    private static final ContextPool<ZstdDecompressCtx> DECOMPRESS_CONTEXTS = new ContextPool<>();
+
+    //Dictionaries stay loaded in their own contexts, weak so unregistered dictionaries don't stay around
+    private static final Map<MagmaDictionary, ContextPool<ZstdDecompressCtx>> DICTIONARY_DECOMPRESS_CONTEXTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static ContextPool<ZstdCompressCtx> compressContexts(CompressionOptions options) {
+        synchronized(COMPRESS_CONTEXTS) {
+            return COMPRESS_CONTEXTS.computeIfAbsent(options, key -> new ContextPool<>());
+        }
+    }
+
+    private static ZstdCompressCtx newCompressContext(CompressionOptions options) {
+        var ctx = new ZstdCompressCtx().setLevel(options.level());
+        if(options.longWindowLog() > 0) { ctx.setLong(options.longWindowLog()); }
+        if(options.workers() > 0) { ctx.setWorkers(options.workers()); }
+        if(options.dictionary() != null) { ctx.loadDict(options.dictionary().bytes()); }
+
+        return ctx;
+    }
+
+    private static ContextPool<ZstdDecompressCtx> decompressContexts(@Nullable MagmaDictionary dictionary) {
+        if(dictionary == null) { return DECOMPRESS_CONTEXTS; }
+        return DICTIONARY_DECOMPRESS_CONTEXTS.computeIfAbsent(dictionary, key -> new ContextPool<>());
+    }
+
+    private static ZstdDecompressCtx newDecompressContext(@Nullable MagmaDictionary dictionary) {
+        var ctx = new ZstdDecompressCtx();
+        if(dictionary != null) { ctx.loadDict(dictionary.decompressDictionary()); }
+
+        return ctx;
+    }
+
+    /**
+     * Closes the idle contexts that have the dictionary loaded, contexts that are borrowed right now are closed once they're given back.
+     * Regions still using the dictionary get new contexts when they need them.
+     */
+    static void releaseContexts(MagmaDictionary dictionary) {
+        synchronized(COMPRESS_CONTEXTS) {
+            var iterator = COMPRESS_CONTEXTS.entrySet().iterator();
+            while(iterator.hasNext()) {
+                var entry = iterator.next();
+                if(entry.getKey().dictionary() != dictionary) { continue; }
+
+                entry.getValue().close();
+                iterator.remove();
+            }
+        }
+
+        var pool = DICTIONARY_DECOMPRESS_CONTEXTS.remove(dictionary);
+        if(pool != null)
+            pool.close();
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "zstd";
+    }
+
+    @Override
+    public boolean supportsDictionaries() {
+        return true;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return (int) Zstd.compressBound(length);
+    }
+
+    @Override
+    public int compress(byte[] destination, int destinationOffset, int destinationLength,
+                        byte[] source, int sourceOffset, int sourceLength, CompressionOptions options) throws IOException {
+        var pool = compressContexts(options);
+
+        var ctx = pool.poll();
+        if(ctx == null) { ctx = newCompressContext(options); }
+
+        try {
+            return ctx.compressByteArray(
+                    destination, destinationOffset, destinationLength,
+                    source, sourceOffset, sourceLength);
+        } catch(ZstdException e) {
+            throw new IOException("Failed to compress", e);
+        } finally {
+            pool.release(ctx);
+        }
+    }
+
+    @Override
+    public int decompress(byte[] destination, int destinationOffset, int destinationLength,
+                          byte[] source, int sourceOffset, int sourceLength, @Nullable MagmaDictionary dictionary) throws IOException {
+        var pool = decompressContexts(dictionary);
+
+        var ctx = pool.poll();
+        if(ctx == null) { ctx = newDecompressContext(dictionary); }
+
+        try {
+            return ctx.decompressByteArray(
+                    destination, destinationOffset, destinationLength,
+                    source, sourceOffset, sourceLength);
+        } catch(ZstdException e) {
+            throw new IOException("Failed to decompress", e);
+        } finally {
+            pool.release(ctx);
+        }
+    }
+
+    @Override
+    public int decompress(ByteBuffer destination, int destinationLength, ByteBuffer source, int sourceLength,
+                          @Nullable MagmaDictionary dictionary) throws IOException {
+        var pool = decompressContexts(dictionary);
+
+        var ctx = pool.poll();
+        if(ctx == null) { ctx = newDecompressContext(dictionary); }
+
+        try {
+            return ctx.decompressDirectByteBuffer(
+                    destination, destination.position(), destinationLength,
+                    source, source.position(), sourceLength);
+        } catch(ZstdException e) {
+            throw new IOException("Failed to decompress", e);
+        } finally {
+            pool.release(ctx);
+        }
+    }
+
+    /**
+     * Idle contexts waiting to be borrowed, bounded so bursts of frames don't keep their native memory around.
+     * Once closed, every context given back is closed too.
+     */
+    private static final class ContextPool<T extends AutoCloseable> {
+
+        private final Queue<T> contexts = new ArrayBlockingQueue<>(MAX_POOLED_CONTEXTS);
+        private volatile boolean closed;
+
+        /**
+         * @return An idle context, null if there isn't one
+         */
+        @Nullable T poll() {
+            return this.contexts.poll();
+        }
+
+        /**
+         * Gives the context back, or frees its native memory right away if enough are idle.
+         */
+        void release(T ctx) {
+            if(!this.closed && this.contexts.offer(ctx)) {
+                //Closed while the context was given back, it might have missed the drain
+                if(this.closed)
+                    close();
+                return;
+            }
+
+            close(ctx);
+        }
+
+        /**
+         * Frees the native memory of every idle context.
+         */
+        void close() {
+            this.closed = true;
+
+            T ctx;
+            while((ctx = this.contexts.poll()) != null) {
+                close(ctx);
+            }
+        }
+
+        private static void close(AutoCloseable ctx) {
+            try {
+                ctx.close();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+}
@@ -21,13 +21,13 @@ public class MagmaBiome {
     }
 
     public static MagmaBiome read(short index, MagmaInputStream in) throws IOException {
-        NamespaceID id = NamespaceID.from(in.readStringShort());
+        NamespaceID id = NamespaceID.from(in.readCompactString());
         return new MagmaBiome(index, id);
     }
 
     public void write(MagmaOutputStream mos) throws IOException {
         var nameStr = this.name.asString();
-        mos.writeStringShort(nameStr);
+        mos.writeCompactString(nameStr);
     }
 
 }
\ No newline at end of file
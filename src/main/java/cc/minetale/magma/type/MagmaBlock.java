@@ -10,6 +10,8 @@ import org.jetbrains.annotations.Nullable;
 import org.jglrxavpok.hephaistos.nbt.NBTCompound;
 import org.jglrxavpok.hephaistos.nbt.NBTException;
 import org.jglrxavpok.hephaistos.parser.SNBTParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.StringReader;
@@ -17,12 +19,14 @@ import java.io.StringReader;
 @Getter @AllArgsConstructor()
 public class MagmaBlock {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MagmaBlock.class);
+
     private final short sectionIndex; //Position index relative to the section
 
     private final MagmaMaterial material; //Material gotten from the Magma palette
     private final short stateId;
 
-    private final @Nullable String snbt;
+    private final @Nullable NBTCompound nbt;
 
     public MagmaBlock(short sectionIndex, MagmaMaterial material, Block block) {
         this.sectionIndex = sectionIndex;
@@ -31,11 +35,7 @@ public class MagmaBlock {
 
         this.stateId = block.stateId();
 
-        if(block.hasNbt()) {
-            this.snbt = block.nbt().toSNBT();
-        } else {
-            this.snbt = null;
-        }
+        this.nbt = block.hasNbt() ? block.nbt() : null;
     }
 
     /**
@@ -43,45 +43,67 @@ public class MagmaBlock {
      */
     public Block getBlock() {
         Block block = Block.fromStateId(this.stateId);
+        if(block == null || this.nbt == null) { return block; }
 
-        if(this.snbt != null && !this.snbt.isEmpty()) {
-            try {
-                block.withNbt((NBTCompound) new SNBTParser(new StringReader(this.snbt)).parse());
-            } catch(NBTException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return block;
+        return block.withNbt(this.nbt);
     }
 
     public static MagmaBlock read(MaterialPalette materialPalette, MagmaInputStream mis) throws IOException {
-        short sectionIndex = mis.readShort();
+        short sectionIndex = mis.readCompactShort();
 
-        var materialIndex = mis.readInt();
+        var materialIndex = mis.readCompactInt();
         MagmaMaterial material = materialPalette.getMaterialAt(materialIndex);
 
-        var stateIndex = mis.readShort();
+        var stateIndex = mis.readCompactShort();
 
         var statePalette = material.getStatePalette();
         short stateId = statePalette.getStateAt(stateIndex);
 
-        var hasSnbt = mis.readBoolean();
-        String snbt = hasSnbt ? mis.readStringInt() : null;
+        var hasNbt = mis.readBoolean();
+        NBTCompound nbt = hasNbt ? mis.readNBT() : null;
+
+        return new MagmaBlock(sectionIndex, material, stateId, nbt);
+    }
+
+    /**
+     * Reads a block of a legacy section, every block was written with its position, its material and state indices and its NBT as SNBT.
+     * @return The block, its NBT is left out if it can't be parsed
+     */
+    public static MagmaBlock readLegacy(MaterialPalette materialPalette, MagmaInputStream mis) throws IOException {
+        short sectionIndex = mis.readShort();
+
+        var materialIndex = mis.readInt();
+        MagmaMaterial material = materialPalette.getMaterialAt(materialIndex);
+        if(material == null)
+            throw new IOException("Unknown material index: " + materialIndex);
+
+        var stateIndex = mis.readShort();
+        short stateId = material.getStatePalette().getStateAt(stateIndex);
+
+        NBTCompound nbt = null;
+        if(mis.readBoolean()) {
+            var snbt = mis.readStringInt();
+            try {
+                if(!snbt.isEmpty() && new SNBTParser(new StringReader(snbt)).parse() instanceof NBTCompound compound)
+                    nbt = compound;
+            } catch(NBTException e) {
+                LOGGER.error("Failed to parse the NBT of a legacy block at {}", sectionIndex, e);
+            }
+        }
 
-        return new MagmaBlock(sectionIndex, material, stateId, snbt);
+        return new MagmaBlock(sectionIndex, material, stateId, nbt);
     }
 
     public void write(MagmaOutputStream mos) throws IOException {
-        mos.writeShort(this.sectionIndex);
-        mos.writeInt(this.material.getIndex());
+        mos.writeCompactShort(this.sectionIndex);
+        mos.writeCompactInt(this.material.getIndex());
 
         var statePalette = this.material.getStatePalette();
-        mos.writeShort(statePalette.findInPaletteOrAdd(this.stateId));
+        mos.writeCompactShort(statePalette.findInPaletteOrAdd(this.stateId));
 
-        if(this.snbt != null && !this.snbt.isEmpty()) {
+        if(this.nbt != null) {
             mos.writeBoolean(true);
-            mos.writeStringInt(this.snbt);
+            mos.writeNBT(this.nbt);
         } else {
             mos.writeBoolean(false);
         }
@@ -33,9 +33,7 @@ public class MagmaChunk {
         Byte2ObjectMap<MagmaSection> magmaSections = new Byte2ObjectOpenHashMap<>(sectionsCount);
 
         for(byte i = 0; i < sectionsCount; i++) {
-            var section = sections.get(i);
-
-            var magmaSection = MagmaSection.fromSection(materialPalette, biomePalette, section);
+            var magmaSection = MagmaSection.fromSection(materialPalette, biomePalette, chunk, chunk.getMinSection() + i);
             if(magmaSection != null) {
                 magmaSections.put(i, magmaSection);
                 populatedSections.set(i);
@@ -63,6 +61,18 @@ public class MagmaChunk {
         return new MagmaChunk(populatedSections, sections);
     }
 
+    /**
+     * Rough amount of memory held by the chunk's sections, see {@linkplain MagmaSection#estimateSize()}.
+     */
+    public long estimateSize() {
+        long size = 0;
+        for(MagmaSection section : this.sections.values()) {
+            if(section != null)
+                size += section.estimateSize();
+        }
+        return size;
+    }
+
     public void write(MagmaOutputStream mos) throws IOException {
         mos.writeBitSetByte(this.populatedSections);
 
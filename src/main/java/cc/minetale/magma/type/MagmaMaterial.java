@@ -1,10 +1,11 @@
 package cc.minetale.magma.type;
 
+import cc.minetale.magma.palette.PropertyDictionary;
 import cc.minetale.magma.palette.StatePalette;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import net.minestom.server.instance.block.Block;
 import net.minestom.server.utils.NamespaceID;
@@ -13,7 +14,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
-@Getter @RequiredArgsConstructor
+@Getter
 public class MagmaMaterial {
     private static final Logger LOGGER = LoggerFactory.getLogger(MagmaMaterial.class);
 
@@ -26,11 +27,16 @@ public class MagmaMaterial {
 
     @Setter private StatePalette statePalette;
 
+    @Getter(AccessLevel.NONE) private final Block material; //Resolved once, see #getMaterial()
+    private final boolean isKnown; //Whether the ID exists in this version
+
     public MagmaMaterial(int index, boolean isCustom, Block block) {
         this.index = index;
         this.isCustom = isCustom;
         this.id = block.namespace();
         this.propertiesAmount = (short) block.properties().size();
+        this.material = Block.fromNamespaceId(block.namespace()); //The captured state is only seeded into the state palette
+        this.isKnown = true;
 
         var statePalette = new StatePalette();
         statePalette.addState(block.stateId());
@@ -42,40 +48,50 @@ public class MagmaMaterial {
         this.index = index;
         this.isCustom = isCustom;
         this.id = id;
-        this.propertiesAmount = (short) Block.fromNamespaceId(id).properties().size();
+
+        var block = Block.fromNamespaceId(id);
+        this.isKnown = block != null;
+        if(!this.isKnown) {
+            LOGGER.warn("Material {} doesn't exist in this version, it's replaced with barriers", id);
+            block = Block.BARRIER;
+        }
+
+        this.material = block;
+        this.propertiesAmount = (short) block.properties().size();
     }
 
     /**
-     * @return Base block without any properties/with a default state. See also {@linkplain MagmaBlock#getBlock()}.
+     * @return Base block without any properties/with a default state, {@linkplain Block#BARRIER} if the material isn't known.
+     * See also {@linkplain MagmaBlock#getBlock()}.
      */
     public Block getMaterial() {
-        return Block.fromNamespaceId(this.id);
+        return this.material;
     }
 
-    public static MagmaMaterial read(int index, MagmaInputStream mis) throws IOException {
+    public static MagmaMaterial read(int index, PropertyDictionary dictionary, MagmaInputStream mis) throws IOException {
         boolean isCustom = mis.readBoolean();
 
         NamespaceID id;
         if(!isCustom) {
-            id = NamespaceID.from(mis.readStringShort());
+            id = NamespaceID.from(mis.readCompactString());
         } else {
             //TODO Figure out custom blocks
             id = Block.DIRT.namespace();
-            mis.skipBytes(mis.readShort()); //Skip the ID until implemented
+            mis.readCompactString(); //Skip the ID until implemented
         }
 
         MagmaMaterial material = new MagmaMaterial(index, isCustom, id);
 
-        StatePalette statePalette = StatePalette.read(mis, material);
+        StatePalette statePalette = StatePalette.read(mis, dictionary, material);
         material.setStatePalette(statePalette);
 
         return material;
     }
 
-    public void write(MagmaOutputStream mos) throws IOException {
+    public void write(PropertyDictionary dictionary, MagmaOutputStream mos) throws IOException {
         mos.writeBoolean(this.isCustom);
-        mos.writeStringShort(this.id.asString());
+        mos.writeCompactString(this.id.asString());
 
-        this.statePalette.write(mos);
+        this.statePalette.write(mos, dictionary, this);
     }
 }
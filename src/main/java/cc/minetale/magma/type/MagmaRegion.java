@@ -1,25 +1,48 @@
 package cc.minetale.magma.type;
 
+import cc.minetale.magma.MagmaFormat;
 import cc.minetale.magma.MagmaUtils;
 import cc.minetale.magma.palette.BiomePalette;
 import cc.minetale.magma.palette.MaterialPalette;
+import cc.minetale.magma.stream.BufferChunkSource;
+import cc.minetale.magma.stream.BufferPool;
+import cc.minetale.magma.stream.ChunkSource;
+import cc.minetale.magma.stream.MagmaCodec;
+import cc.minetale.magma.stream.MagmaCodecs;
+import cc.minetale.magma.stream.CompressionOptions;
+import cc.minetale.magma.stream.MagmaDictionary;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
-import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdOutputStream;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import lombok.AccessLevel;
 import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 @Getter
-public class MagmaRegion {
+public class MagmaRegion implements Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MagmaRegion.class);
 
+    //Upper bound of what's held in memory between serialization, compression and the file while streaming
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final int xSize;
     private final int zSize;
 
@@ -30,6 +53,18 @@ public class MagmaRegion {
 
     private Long2ObjectMap<MagmaChunk> chunks;
 
+    private int flags; //Format flags the region was read with, see MagmaFormat
+    private MagmaCodec codec = MagmaCodecs.ZSTD; //Codec the region was read with
+    private @Nullable MagmaDictionary dictionary; //Dictionary the region was read with
+
+    //Only present for indexed regions, chunks are decoded from it on demand
+    private @Nullable ChunkSource chunkSource;
+    private int[] chunkOffsets;
+    private int[] chunkLengths;
+
+    //Frames are read under the read lock, the source is only swapped under the write lock, see #reopen(MagmaRegion)
+    @Getter(AccessLevel.NONE) private final ReadWriteLock sourceLock = new ReentrantReadWriteLock();
+
     public MagmaRegion(int xSize, int zSize, BitSet populatedChunks, MaterialPalette materialPalette, BiomePalette biomePalette, Long2ObjectMap<MagmaChunk> chunks) {
         this.xSize = xSize;
         this.zSize = zSize;
@@ -39,98 +74,664 @@ public class MagmaRegion {
         this.chunks = chunks;
     }
 
+    private MagmaRegion(int xSize, int zSize, BitSet populatedChunks, MaterialPalette materialPalette, BiomePalette biomePalette,
+                        ChunkSource chunkSource, int[] chunkOffsets, int[] chunkLengths) {
+
+        this(xSize, zSize, populatedChunks, materialPalette, biomePalette, Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>()));
+        this.chunkSource = chunkSource;
+        this.chunkOffsets = chunkOffsets;
+        this.chunkLengths = chunkLengths;
+    }
+
     /**
-     * Gets the Magma chunk at the specified block coordinates.
+     * Gets the Magma chunk at the specified chunk coordinates.
      *
      * @param x the x-coordinate
      * @param z the z-coordinate
      * @return the Magma chunk, or {@code null} if not populated
      */
     public MagmaChunk getMagmaChunkAt(int x, int z) {
-        return this.chunks.get(MagmaUtils.getMagmaChunkIndex(x, z, this.xSize));
+        return getChunk(MagmaUtils.getMagmaChunkIndex(x, z, this.xSize));
+    }
+
+    /**
+     * Gets the Magma chunk at the specified index, decoding it from its frame first if the region is indexed.
+     *
+     * @param index the index, see {@linkplain MagmaUtils#getMagmaChunkIndex(int, int, int)}
+     * @return the Magma chunk, or {@code null} if not populated
+     */
+    public @Nullable MagmaChunk getChunk(int index) {
+        var chunk = this.chunks.get(index);
+        if(chunk != null || this.chunkSource == null) { return chunk; }
+
+        chunk = decodeChunk(index);
+
+        //Two threads may decode the same chunk at once, both results are identical
+        if(chunk != null)
+            this.chunks.put(index, chunk);
+        return chunk;
+    }
+
+    /**
+     * Like {@linkplain #getChunk(int)} but doesn't keep the chunk decoded, so writing the region doesn't undo {@linkplain #releaseChunk(int)}.
+     */
+    private @Nullable MagmaChunk decodeChunk(int index) {
+        var chunk = this.chunks.get(index);
+        if(chunk != null || this.chunkSource == null) { return chunk; }
+
+        this.sourceLock.readLock().lock();
+        try {
+            if(index < 0 || index >= this.chunkLengths.length || this.chunkLengths[index] == 0) { return null; }
+            return readChunkFrame(index);
+        } catch(IOException e) {
+            LOGGER.error("Failed to decode chunk at index {}", index, e);
+            return null;
+        } finally {
+            this.sourceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Used while writing, a populated chunk that can't be decoded fails the write instead of being left out.
+     */
+    private MagmaChunk requireChunk(int index) throws IOException {
+        var chunk = decodeChunk(index);
+        if(chunk == null)
+            throw new IOException("Populated chunk at index " + index + " couldn't be decoded");
+
+        return chunk;
+    }
+
+    private MagmaChunk readChunkFrame(int index) throws IOException {
+        //Only holds the compressed frame, it's decompressed into its own buffer before the scratch buffer is given back
+        var scratch = BufferPool.acquire();
+
+        ByteBuffer data;
+        try {
+            var frameMis = new MagmaInputStream(this.chunkSource.readFrame(this.chunkOffsets[index], this.chunkLengths[index], scratch));
+            frameMis.setCodec(this.codec);
+            frameMis.setDictionary(this.dictionary);
+
+            data = frameMis.readCompressedBuffer();
+        } finally {
+            BufferPool.release(scratch);
+        }
+
+        MagmaInputStream chunkMis = new MagmaInputStream(data);
+        chunkMis.setFlags(this.flags);
+        return MagmaChunk.read(this.materialPalette, this.biomePalette, chunkMis);
+    }
+
+    public boolean isIndexed() {
+        return this.chunkSource != null;
+    }
+
+    /**
+     * Drops the decoded chunk, it gets decoded from its frame again on the next {@linkplain #getChunk(int)}.
+     * @return false if the chunk wasn't decoded, or the region isn't indexed and can't decode it again
+     */
+    public boolean releaseChunk(int index) {
+        if(this.chunkSource == null) { return false; }
+        return this.chunks.remove(index) != null;
+    }
+
+    /**
+     * Decodes every frame of an indexed region that hasn't been decoded yet, in parallel on the pool.
+     * Does nothing for other regions, their chunks are decoded while they're read.
+     */
+    public void decodeAll(ForkJoinPool pool) {
+        if(this.chunkSource == null) { return; }
+
+        int[] indices = this.populatedChunks.stream().toArray();
+        pool.submit(() -> Arrays.stream(indices).parallel().forEach(this::getChunk)).join();
+    }
+
+    /**
+     * Decodes chunks from the frames of the region written from this one from now on, e.g. after it was saved over the file this one was read from.
+     * The palettes are kept, the frames were written from them. Takes over the written region's source and closes the previous one.
+     */
+    public void reopen(MagmaRegion written) throws IOException {
+        if(this.chunkSource == null || written.chunkSource == null)
+            throw new IOException("Only indexed regions can be reopened");
+        if(written.xSize != this.xSize || written.zSize != this.zSize || !written.populatedChunks.equals(this.populatedChunks))
+            throw new IOException("Region wasn't written from this one");
+
+        ChunkSource previousSource;
+
+        this.sourceLock.writeLock().lock();
+        try {
+            previousSource = this.chunkSource;
+
+            this.chunkSource = written.chunkSource;
+            this.chunkOffsets = written.chunkOffsets;
+            this.chunkLengths = written.chunkLengths;
+            this.flags = written.flags;
+            this.codec = written.codec;
+            this.dictionary = written.dictionary;
+
+            written.chunkSource = null;
+        } finally {
+            this.sourceLock.writeLock().unlock();
+        }
+
+        previousSource.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(this.chunkSource != null)
+            this.chunkSource.close();
     }
 
     public static MagmaRegion read(MagmaInputStream mis) throws IOException {
+        return read(mis, in -> new BufferChunkSource(in.readRemaining()));
+    }
+
+    public static MagmaRegion read(MagmaInputStream mis, ChunkSource.Opener opener) throws IOException {
+        return read(mis, opener, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param opener Used to open the frames of an indexed region, unused for sequential regions
+     * @param pool Decodes the chunks of regions with {@linkplain MagmaFormat#CHUNK_LENGTHS} in parallel
+     */
+    public static MagmaRegion read(MagmaInputStream mis, ChunkSource.Opener opener, ForkJoinPool pool) throws IOException {
         LOGGER.debug("Reading region...");
 
+        short header = mis.readShort();
+
+        int flags;
+        if(MagmaFormat.isVersioned(header)) {
+            flags = readVersionedHeader(mis);
+        } else if(MagmaFormat.isFlagged(header)) {
+            flags = header & ~MagmaFormat.FLAGGED;
+        } else {
+            //Written before the header was added, the palettes and sections use the old encodings
+            return readSequential(header, MagmaFormat.LEGACY, mis, pool);
+        }
+
+        if((flags & ~MagmaFormat.KNOWN_FLAGS) != 0)
+            throw new IOException("Unsupported region flags: " + flags);
+
+        if(MagmaFormat.has(flags, MagmaFormat.DICTIONARY)) {
+            if(!mis.getCodec().supportsDictionaries())
+                throw new IOException("Codec " + mis.getCodec().getName() + " doesn't support dictionaries");
+
+            int dictionaryId = mis.readInt();
+
+            var dictionary = MagmaDictionary.get(dictionaryId);
+            if(dictionary == null)
+                throw new IOException("Region was compressed with dictionary " + Integer.toUnsignedString(dictionaryId) + ", which isn't registered");
+
+            mis.setDictionary(dictionary);
+        }
+
         int xSize = mis.readShort();
+        if(!MagmaFormat.has(flags, MagmaFormat.INDEXED))
+            return readSequential(xSize, flags, mis, pool);
+
+        int zSize = mis.readShort();
+
+        int bitmaskLength = mis.readInt();
+        BitSet populatedChunks = mis.readBitSet(bitmaskLength);
+
+        //Palettes
+        MagmaInputStream palettesMis = new MagmaInputStream(mis.readCompressedBuffer());
+        palettesMis.setFlags(flags);
+
+        MaterialPalette materialPalette = MaterialPalette.read(palettesMis);
+        BiomePalette biomePalette = BiomePalette.read(palettesMis);
+
+        //Offset table
+        int tableLength = mis.readInt();
+        var table = ByteBuffer.wrap(mis.readByteArray(tableLength * 2 * Integer.BYTES));
+
+        int[] chunkOffsets = new int[tableLength];
+        int[] chunkLengths = new int[tableLength];
+        for(int i = 0; i < tableLength; i++) {
+            chunkOffsets[i] = table.getInt();
+            chunkLengths[i] = table.getInt();
+        }
+
+        ChunkSource chunkSource = opener.open(mis);
+
+        LOGGER.debug("Finished reading indexed region!");
+
+        var region = new MagmaRegion(
+                xSize, zSize,
+                populatedChunks,
+                materialPalette, biomePalette,
+                chunkSource, chunkOffsets, chunkLengths);
+
+        region.flags = flags;
+        region.codec = mis.getCodec();
+        region.dictionary = mis.getDictionary();
+        return region;
+    }
+
+    /**
+     * Reads the rest of the versioned header after the first short and sets the codec on the stream.
+     * @return The flags
+     */
+    private static int readVersionedHeader(MagmaInputStream mis) throws IOException {
+        if(mis.readShort() != (short) MagmaFormat.MAGIC)
+            throw new IOException("Not a Magma region");
+
+        int version = mis.readUnsignedByte();
+        if(version > MagmaFormat.VERSION)
+            throw new IOException("Unsupported region version: " + version);
+
+        int codecId = mis.readUnsignedByte();
+        var codec = MagmaCodecs.get(codecId);
+        if(codec == null)
+            throw new IOException("Unknown codec: " + codecId);
+
+        mis.setCodec(codec);
+        return mis.readUnsignedShort();
+    }
+
+    private static MagmaRegion readSequential(int xSize, int flags, MagmaInputStream mis, ForkJoinPool pool) throws IOException {
         int zSize = mis.readShort();
 
         int bitmaskLength = mis.readInt();
         BitSet populatedChunks = mis.readBitSet(bitmaskLength);
 
-        byte[] data = mis.readCompressed();
-        MagmaInputStream dataMis = new MagmaInputStream(data);
+        MagmaInputStream dataMis = new MagmaInputStream(mis.readCompressedBuffer());
+        dataMis.setFlags(flags);
 
         //Palettes
         MaterialPalette materialPalette = MaterialPalette.read(dataMis);
         BiomePalette biomePalette = BiomePalette.read(dataMis);
 
         //Chunks
-        byte[] chunksData = dataMis.readByteArray();
-
-        Long2ObjectMap<MagmaChunk> chunks = new Long2ObjectOpenHashMap<>(xSize * zSize);
-        try(MagmaInputStream chunksMis = new MagmaInputStream(chunksData)) {
-            int current = 0;
-            for(var index = 0; index < populatedChunks.length(); index++) {
-                if(!populatedChunks.get(index)) {
-                    // Non-populated chunk
-                    continue;
-                }
-
-                try {
-                    MagmaChunk chunk = MagmaChunk.read(materialPalette, biomePalette, chunksMis);
-                    chunks.put(current, chunk);
-                } catch(IOException e) {
-                    e.printStackTrace();
-                }
-
-                current++;
+        Long2ObjectMap<MagmaChunk> chunks;
+        try(MagmaInputStream chunksMis = dataMis.readMagma()) {
+            if(MagmaFormat.has(flags, MagmaFormat.CHUNK_LENGTHS)) {
+                chunks = readChunksParallel(materialPalette, biomePalette, populatedChunks, chunksMis, pool);
+            } else {
+                chunks = readChunks(materialPalette, biomePalette, populatedChunks, chunksMis);
             }
         }
 
         LOGGER.debug("Finished reading region!");
 
-        return new MagmaRegion(
+        var region = new MagmaRegion(
                 xSize, zSize,
                 populatedChunks,
                 materialPalette, biomePalette,
                 chunks);
+
+        region.flags = flags & ~MagmaFormat.LEGACY; //Saving writes the current layout
+        region.codec = mis.getCodec();
+        region.dictionary = mis.getDictionary();
+        return region;
+    }
+
+    private static Long2ObjectMap<MagmaChunk> readChunks(MaterialPalette materialPalette, BiomePalette biomePalette,
+                                                         BitSet populatedChunks, MagmaInputStream chunksMis) {
+
+        Long2ObjectMap<MagmaChunk> chunks = new Long2ObjectOpenHashMap<>(populatedChunks.cardinality());
+        for(var index = 0; index < populatedChunks.length(); index++) {
+            if(!populatedChunks.get(index)) {
+                // Non-populated chunk
+                continue;
+            }
+
+            try {
+                MagmaChunk chunk = MagmaChunk.read(materialPalette, biomePalette, chunksMis);
+                chunks.put(index, chunk);
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Splits the length-prefixed chunks into views first, then decodes them in parallel on the pool.
+     */
+    private static Long2ObjectMap<MagmaChunk> readChunksParallel(MaterialPalette materialPalette, BiomePalette biomePalette,
+                                                                 BitSet populatedChunks, MagmaInputStream chunksMis,
+                                                                 ForkJoinPool pool) throws IOException {
+
+        int[] indices = populatedChunks.stream().toArray();
+
+        MagmaInputStream[] chunkStreams = new MagmaInputStream[indices.length];
+        for(int i = 0; i < indices.length; i++) {
+            chunkStreams[i] = chunksMis.readMagma();
+        }
+
+        Long2ObjectMap<MagmaChunk> chunks = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>(indices.length));
+        pool.submit(() -> IntStream.range(0, indices.length).parallel().forEach(i -> {
+            try {
+                chunks.put(indices[i], MagmaChunk.read(materialPalette, biomePalette, chunkStreams[i]));
+            } catch(IOException e) {
+                LOGGER.error("Failed to decode chunk at index {}", indices[i], e);
+            }
+        })).join();
+
+        return chunks;
     }
 
     public void write(MagmaOutputStream mos) throws IOException {
-        LOGGER.debug("Writing region...");
+        write(mos, 0);
+    }
 
-        mos.writeShort(this.xSize);
-        mos.writeShort(this.zSize);
+    /**
+     * Writes the region into the stream, holding the serialized data in memory until it's compressed.
+     * Prefer {@linkplain #write(FileChannel, int)} for files. Frames are compressed with the stream's {@linkplain CompressionOptions}.
+     *
+     * @param flags Format flags from {@linkplain MagmaFormat}, {@linkplain MagmaFormat#DICTIONARY} follows the options.
+     */
+    public void write(MagmaOutputStream mos, int flags) throws IOException {
+        flags = dictionaryFlags(flags, mos.getCompression());
 
-        mos.writeBitSetInt(this.populatedChunks);
+        if(!MagmaFormat.has(flags, MagmaFormat.INDEXED)) {
+            writeSequential(mos, flags);
+            return;
+        }
+
+
+        LOGGER.debug("Writing indexed region...");
+
+        writeHeader(mos, flags);
+        writePalettesFrame(mos, flags);
+
+        //Frames, one per populated chunk
+        int tableLength = this.xSize * this.zSize;
+        int[] chunkOffsets = new int[tableLength];
+        int[] chunkLengths = new int[tableLength];
+
+        try(MagmaOutputStream framesMos = MagmaOutputStream.pooled();
+            MagmaOutputStream chunkMos = MagmaOutputStream.pooled()) {
+
+            framesMos.setCompression(mos.getCompression());
+            chunkMos.setFlags(flags);
+            for(int i = 0; i < this.populatedChunks.length(); i++) {
+                if(!this.populatedChunks.get(i)) { continue; }
+
+                int offset = framesMos.size();
+                writeChunkFrame(framesMos, chunkMos, i);
+
+                chunkOffsets[i] = offset;
+                chunkLengths[i] = framesMos.size() - offset;
+            }
+
+            //Offset table
+            mos.writeInt(tableLength);
+            for(int i = 0; i < tableLength; i++) {
+                mos.writeInt(chunkOffsets[i]);
+                mos.writeInt(chunkLengths[i]);
+            }
+
+            framesMos.writeTo(mos);
+        }
+
+        LOGGER.debug("Finished writing indexed region!");
+    }
+
+    /**
+     * Streams the region into the channel starting at its current position. Only a single chunk is held
+     * in its serialized form at a time, lengths and the offset table get back-patched once the data they describe is written.
+     * The channel is left open.
+     *
+     * @param flags Format flags from {@linkplain MagmaFormat}
+     */
+    public void write(FileChannel channel, int flags) throws IOException {
+        write(channel, flags, CompressionOptions.DEFAULT);
+    }
+
+    /**
+     * @see #write(FileChannel, int)
+     */
+    public void write(FileChannel channel, int flags, CompressionOptions compression) throws IOException {
+        long start = channel.position();
+        MagmaOutputStream fileMos = new MagmaOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), STREAM_BUFFER_SIZE));
+        fileMos.setCompression(compression);
+
+        flags = dictionaryFlags(flags, compression);
+        writeHeader(fileMos, flags);
+
+        if(MagmaFormat.has(flags, MagmaFormat.INDEXED)) {
+            streamIndexed(channel, start, fileMos, flags);
+        } else if(compression.codec() == MagmaCodecs.ZSTD) {
+            streamSequential(channel, start, fileMos, flags);
+        } else {
+            //Only zstd frames can be streamed, other codecs compress the data from memory
+            writeSequentialData(fileMos, flags);
+            fileMos.flush();
+        }
+    }
+
+    private void streamIndexed(FileChannel channel, long start, MagmaOutputStream fileMos, int flags) throws IOException {
+        LOGGER.debug("Streaming indexed region...");
+
+        writePalettesFrame(fileMos, flags);
+
+        //Offset table, patched after the frames are written
+        int tableLength = this.xSize * this.zSize;
+        fileMos.writeInt(tableLength);
+
+        long tablePosition = start + fileMos.size();
+        fileMos.write(new byte[tableLength * 2 * Integer.BYTES]);
 
-        MagmaOutputStream dataMos = new MagmaOutputStream();
+        int framesStart = fileMos.size();
+        var table = ByteBuffer.allocate(tableLength * 2 * Integer.BYTES);
+
+        try(MagmaOutputStream chunkMos = MagmaOutputStream.pooled()) {
+            chunkMos.setFlags(flags);
+            for(int i = 0; i < this.populatedChunks.length(); i++) {
+                if(!this.populatedChunks.get(i)) { continue; }
+
+                int offset = fileMos.size() - framesStart;
+                writeChunkFrame(fileMos, chunkMos, i);
+
+                table.putInt(i * 2 * Integer.BYTES, offset);
+                table.putInt(i * 2 * Integer.BYTES + Integer.BYTES, fileMos.size() - framesStart - offset);
+            }
+        }
+        fileMos.flush();
+
+        patch(channel, tablePosition, table);
+        LOGGER.debug("Finished streaming indexed region!");
+    }
 
-        //Materials
+    private void streamSequential(FileChannel channel, long start, MagmaOutputStream fileMos, int flags) throws IOException {
+        LOGGER.debug("Streaming region...");
+
+        //Compressed and uncompressed lengths, patched after the data is written
+        long lengthsPosition = start + fileMos.size();
+        fileMos.writeInt(0);
+        fileMos.writeInt(0);
+
+        int dataStart = fileMos.size();
+
+        //The chunk data is length-prefixed, size it up front instead of holding it
+        boolean chunkLengths = MagmaFormat.has(flags, MagmaFormat.CHUNK_LENGTHS);
+        int[] lengths = chunkLengths ? new int[this.populatedChunks.length()] : null;
+
+        MagmaOutputStream sizingMos = new MagmaOutputStream(OutputStream.nullOutputStream());
+        sizingMos.setFlags(flags);
+        for(int i = 0; i < this.populatedChunks.length(); i++) {
+            if(!this.populatedChunks.get(i)) { continue; }
+
+            int chunkStart = sizingMos.size();
+            requireChunk(i).write(sizingMos);
+
+            if(chunkLengths) {
+                lengths[i] = sizingMos.size() - chunkStart;
+                sizingMos.writeInt(0);
+            }
+        }
+
+        var compression = fileMos.getCompression();
+        var zstdOut = new ZstdOutputStream(new ShieldedOutputStream(fileMos), compression.level());
+        if(compression.longWindowLog() > 0) { zstdOut.setLong(compression.longWindowLog()); }
+        if(compression.workers() > 0) { zstdOut.setWorkers(compression.workers()); }
+        if(compression.dictionary() != null) { zstdOut.setDict(compression.dictionary().toByteArray()); }
+
+        MagmaOutputStream dataMos = new MagmaOutputStream(new BufferedOutputStream(zstdOut, STREAM_BUFFER_SIZE));
+        dataMos.setFlags(flags);
+
+        //Palettes
         this.materialPalette.write(dataMos);
         this.biomePalette.write(dataMos);
 
         //Chunks
-        MagmaOutputStream chunksMos = new MagmaOutputStream(4096);
+        dataMos.writeInt(sizingMos.size());
         for(int i = 0; i < this.populatedChunks.length(); i++) {
             if(!this.populatedChunks.get(i)) { continue; }
-            MagmaChunk chunk = this.chunks.get(i);
-            chunk.write(chunksMos);
+            if(chunkLengths) { dataMos.writeInt(lengths[i]); }
+            requireChunk(i).write(dataMos);
         }
-        chunksMos.close();
 
-        dataMos.writeMagma(chunksMos);
-
-        //Compression
+        //Finishes the zstd frame, leaves the file open
         dataMos.close();
+        fileMos.flush();
+
+        var frameLengths = ByteBuffer.allocate(2 * Integer.BYTES)
+                .putInt(0, fileMos.size() - dataStart)
+                .putInt(Integer.BYTES, dataMos.size());
+
+        patch(channel, lengthsPosition, frameLengths);
+        LOGGER.debug("Finished streaming region!");
+    }
 
-        byte[] data = dataMos.toByteArray();
-        byte[] compressedData = Zstd.compress(data);
+    private static void patch(FileChannel channel, long position, ByteBuffer data) throws IOException {
+        data.clear();
+        while(data.hasRemaining()) {
+            channel.write(data, position + data.position());
+        }
+    }
+
+    private void writeSequential(MagmaOutputStream mos, int flags) throws IOException {
+        LOGGER.debug("Writing region...");
+
+        writeHeader(mos, flags);
+        writeSequentialData(mos, flags);
 
-        mos.writeCompressed(data.length, compressedData);
         LOGGER.debug("Finished writing region!");
     }
 
-}
\ No newline at end of file
+    private void writeSequentialData(MagmaOutputStream mos, int flags) throws IOException {
+        try(MagmaOutputStream dataMos = MagmaOutputStream.pooled()) {
+            dataMos.setFlags(flags);
+
+            //Materials
+            this.materialPalette.write(dataMos);
+            this.biomePalette.write(dataMos);
+
+            //Chunks, the length gets patched in once they're written
+            int chunksLength = dataMos.beginLength();
+            for(int i = 0; i < this.populatedChunks.length(); i++) {
+                if(!this.populatedChunks.get(i)) { continue; }
+                MagmaChunk chunk = requireChunk(i);
+
+                if(MagmaFormat.has(flags, MagmaFormat.CHUNK_LENGTHS)) {
+                    int chunkLength = dataMos.beginLength();
+                    chunk.write(dataMos);
+                    dataMos.endLength(chunkLength);
+                } else {
+                    chunk.write(dataMos);
+                }
+            }
+            dataMos.endLength(chunksLength);
+
+            //Compression
+            mos.writeCompressed(dataMos);
+        }
+    }
+
+    /**
+     * Regions are compressed with a dictionary whenever the options have one, whether the flag was requested or not.
+     */
+    private static int dictionaryFlags(int flags, CompressionOptions compression) {
+        return compression.dictionary() != null ? flags | MagmaFormat.DICTIONARY : flags & ~MagmaFormat.DICTIONARY;
+    }
+
+    private void writeHeader(MagmaOutputStream mos, int flags) throws IOException {
+        mos.writeInt(MagmaFormat.MAGIC);
+        mos.writeByte(MagmaFormat.VERSION);
+        mos.writeByte(mos.getCompression().codec().getId());
+        mos.writeShort(flags);
+
+        if(MagmaFormat.has(flags, MagmaFormat.DICTIONARY))
+            mos.writeInt(mos.getCompression().dictionary().getId());
+
+        mos.writeShort(this.xSize);
+        mos.writeShort(this.zSize);
+
+        mos.writeBitSetInt(this.populatedChunks);
+    }
+
+    private void writePalettesFrame(MagmaOutputStream mos, int flags) throws IOException {
+        try(MagmaOutputStream palettesMos = MagmaOutputStream.pooled()) {
+            palettesMos.setFlags(flags);
+            this.materialPalette.write(palettesMos);
+            this.biomePalette.write(palettesMos);
+
+            mos.writeCompressed(palettesMos);
+        }
+    }
+
+    /**
+     * Serializes the chunk into the reusable {@code chunkMos} and writes it as its own compressed frame.
+     */
+    private void writeChunkFrame(MagmaOutputStream mos, MagmaOutputStream chunkMos, int index) throws IOException {
+        MagmaChunk chunk = requireChunk(index);
+
+        chunkMos.reset();
+        chunk.write(chunkMos);
+
+        mos.writeCompressed(chunkMos);
+    }
+
+    /**
+     * Serializes the palettes and every chunk on their own, the same data indexed regions compress into separate frames.
+     * Used as samples to train dictionaries with, see {@linkplain cc.minetale.magma.MagmaDictionaryTrainer}.
+     */
+    public void collectSamples(Consumer<byte[]> samples) throws IOException {
+        try(MagmaOutputStream sampleMos = MagmaOutputStream.pooled()) {
+            sampleMos.setFlags(this.flags);
+
+            this.materialPalette.write(sampleMos);
+            this.biomePalette.write(sampleMos);
+            samples.accept(sampleMos.toByteArray());
+
+            for(int i = 0; i < this.populatedChunks.length(); i++) {
+                if(!this.populatedChunks.get(i)) { continue; }
+
+                //Already logged, a chunk that can't be decoded just isn't sampled
+                MagmaChunk chunk = decodeChunk(i);
+                if(chunk == null) { continue; }
+
+                sampleMos.reset();
+                chunk.write(sampleMos);
+                samples.accept(sampleMos.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Forwards writes, but only flushes on close, so closing a compression stream doesn't close the file below it.
+     */
+    private static class ShieldedOutputStream extends FilterOutputStream {
+
+        ShieldedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            this.out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
+}
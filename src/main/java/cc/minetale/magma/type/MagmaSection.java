@@ -1,14 +1,17 @@
 package cc.minetale.magma.type;
 
+import cc.minetale.magma.MagmaFormat;
 import cc.minetale.magma.MagmaUtils;
 import cc.minetale.magma.palette.BiomePalette;
 import cc.minetale.magma.palette.MaterialPalette;
+import cc.minetale.magma.palette.SectionPalette;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
-import it.unimi.dsi.fastutil.bytes.Byte2ObjectMap;
-import it.unimi.dsi.fastutil.bytes.Byte2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
+import it.unimi.dsi.fastutil.shorts.Short2ObjectMaps;
 import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -17,168 +20,428 @@ import net.minestom.server.instance.Chunk;
 import net.minestom.server.instance.Section;
 import net.minestom.server.instance.block.Block;
 import net.minestom.server.instance.palette.Palette;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Getter @AllArgsConstructor
 public class MagmaSection {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MagmaSection.class);
 
+    public static final int BLOCK_DIMENSION = 16; //Dimension used by Palette#blocks()
+    public static final int BIOME_DIMENSION = 4; //Dimension used by Palette#biomes()
+
+    public static final int LIGHT_LENGTH = 2048; //Two nibbles per byte for every block
+
+    //Light sentinels, see MagmaFormat#UNIFORM_LIGHT
+    private static final byte LIGHT_ABSENT = 0;
+    private static final byte LIGHT_UNIFORM = 1;
+    private static final byte LIGHT_FULL = 2;
+
+    private static final byte[] NO_LIGHT = new byte[0];
+
+    //Block encodings, see MagmaFormat#SECTION_ENCODINGS
+    private static final byte ENCODING_PALETTED = 0;
+    private static final byte ENCODING_UNIFORM = 1;
+    private static final byte ENCODING_SPARSE = 2;
+
+    //Most blocks that can differ from the most common one for a section to be sparse
+    public static final int SPARSE_LIMIT = 256;
+
+    //Uniform light arrays by their value, shared between every section that reads one. Must never be modified.
+    private static final AtomicReferenceArray<byte[]> UNIFORM_LIGHTS = new AtomicReferenceArray<>(256);
+
     private byte[] skyLight;
     private byte[] blockLight;
 
-    private Short2ObjectMap<MagmaBlock> blocks;
-    private Byte2ObjectMap<MagmaBiome> biomes;
+    private SectionPalette blocks; //Block references, see MaterialPalette#toReference
+    private SectionPalette biomes; //Indices within the BiomePalette
+    private Short2ObjectMap<NBTCompound> blockEntities; //NBT of blocks that have any, by their index within the section
 
-    public void addMaterialsToPalette(Int2ObjectMap<MagmaMaterial> materialPalette) {
-        for(MagmaBlock block : this.blocks.values()) {
-            var material = block.getMaterial();
-            var namespace = material.getMaterial().namespace();
+    private int sparseBackground; //Palette index of the most common block if the section was read sparse, otherwise -1
 
-            var isUnique = materialPalette.values().stream().noneMatch(otherMaterial -> {
-                var otherBlock = otherMaterial.getMaterial();
-                var otherNamespace = otherBlock.namespace();
-                return otherNamespace.equals(namespace);
-            });
+    public MagmaSection(byte[] skyLight, byte[] blockLight, SectionPalette blocks, SectionPalette biomes, Short2ObjectMap<NBTCompound> blockEntities) {
+        this(skyLight, blockLight, blocks, biomes, blockEntities, -1);
+    }
 
-            if(isUnique)
-                materialPalette.put(materialPalette.size(), material);
-        }
+    /**
+     * @return Block at the given index within the section. See also {@linkplain MagmaBlock#getBlock()}.
+     */
+    public MagmaBlock getBlock(MaterialPalette materialPalette, short sectionIndex) {
+        int reference = this.blocks.get(sectionIndex);
+
+        MagmaMaterial material = materialPalette.getMaterialAt(MaterialPalette.getMaterialIndex(reference));
+        short stateId = material.getStatePalette().getStateAt(MaterialPalette.getStateIndex(reference));
+
+        return new MagmaBlock(sectionIndex, material, stateId, this.blockEntities.get(sectionIndex));
     }
 
     /**
+     * Block entities are read from the chunk, its sections only hold the states.
+     * @param sectionIndex Index of the section within the world, see {@linkplain Chunk#getSection(int)}
      * @return A populated section or null if section blockPalette's size is 0 (there aren't any blocks other than air)
      */
-    public static MagmaSection fromSection(MaterialPalette materialPalette, BiomePalette biomePalette, Section section) {
+    public static MagmaSection fromSection(MaterialPalette materialPalette, BiomePalette biomePalette, Chunk chunk, int sectionIndex) {
+        Section section = chunk.getSection(sectionIndex);
+
         byte[] skyLight = section.getSkyLight();
         byte[] blockLight = section.getBlockLight();
 
         Palette secBlockPalette = section.blockPalette();
         Palette secBiomePalette = section.biomePalette();
 
-        Short2ObjectMap<MagmaBlock> blocks = new Short2ObjectOpenHashMap<>();
-        Byte2ObjectMap<MagmaBiome> biomes = new Byte2ObjectOpenHashMap<>();
-
         if(secBlockPalette.count() == 0)
             return null;
 
-        //Block Palette
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x++) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y++) {
-                for(int z = 0; z < Chunk.CHUNK_SIZE_Z; z++) {
-                    short stateId = (short) secBlockPalette.get(x, y, z);
-                    if(stateId < 0) { continue; }
+        SectionPalette blocks = new SectionPalette(BLOCK_DIMENSION, materialPalette.findReferenceOrAdd(Block.AIR));
+        SectionPalette biomes = new SectionPalette(BIOME_DIMENSION, 0);
 
-                    Block block = Block.fromStateId(stateId);
+        Short2ObjectMap<NBTCompound> blockEntities = new Short2ObjectOpenHashMap<>();
 
-                    short sectionIndex = (short) MagmaUtils.getSectionIndex(secBlockPalette.dimension(), x, y, z);
-                    if(blocks.containsKey(sectionIndex)) { continue; }
+        //Block Palette, air is the default so only the present blocks are visited. Each state is looked up once per section.
+        Int2IntOpenHashMap references = new Int2IntOpenHashMap();
+        references.defaultReturnValue(-1);
+        IntSet blockEntityStates = new IntOpenHashSet();
 
-                    if(block == null) {
-                        block = Block.BARRIER;
-                        //Notify about the broken block
-                        LOGGER.error("Unable to find a block from the given StateId. Expected: {}", stateId);
-                    }
+        secBlockPalette.getAllPresent((x, y, z, stateId) -> {
+            int reference = references.get(stateId);
+            if(reference == -1) {
+                Block block = Block.fromStateId((short) stateId);
 
-                    MagmaMaterial material = materialPalette.findInPaletteOrAdd(block);
-
-                    MagmaBlock magmaBlock = new MagmaBlock(sectionIndex, material, block);
-                    blocks.put(sectionIndex, magmaBlock);
+                if(block == null) {
+                    block = Block.BARRIER;
+                    //Notify about the broken block
+                    LOGGER.error("Unable to find a block from the given StateId. Expected: {}", stateId);
                 }
+
+                if(block.registry().isBlockEntity())
+                    blockEntityStates.add(stateId);
+
+                reference = materialPalette.findReferenceOrAdd(block);
+                references.put(stateId, reference);
             }
-        }
+
+            blocks.set(x, y, z, reference);
+
+            //Only the chunk knows the NBT, the palette holds the state
+            if(blockEntityStates.contains(stateId)) {
+                Block block = chunk.getBlock(x, sectionIndex * Chunk.CHUNK_SECTION_SIZE + y, z);
+                if(block.hasNbt())
+                    blockEntities.put((short) MagmaUtils.getSectionIndex(BLOCK_DIMENSION, x, y, z), block.nbt());
+            }
+        });
 
         //Biome Palette
-        final var dimension = secBiomePalette.dimension();
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x += dimension) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += dimension) {
-                for(int z = 0; z <  Chunk.CHUNK_SIZE_Z; z += dimension) {
+        for(int x = 0; x < BIOME_DIMENSION; x++) {
+            for(int y = 0; y < BIOME_DIMENSION; y++) {
+                for(int z = 0; z < BIOME_DIMENSION; z++) {
                     int id = secBiomePalette.get(x, y, z);
                     var biome = MinecraftServer.getBiomeManager().getById(id);
                     MagmaBiome magmaBiome = biomePalette.findInPaletteOrAdd(biome);
-                    biomes.put((byte) MagmaUtils.getSectionIndex(secBiomePalette.dimension(), x, y, z), magmaBiome);
+                    biomes.set(x, y, z, magmaBiome.getIndex());
                 }
             }
         }
 
-        return new MagmaSection(skyLight, blockLight, blocks, biomes);
+        return new MagmaSection(skyLight, blockLight, blocks, biomes, blockEntities);
     }
 
     public static MagmaSection read(MaterialPalette materialPalette, BiomePalette biomePalette, MagmaInputStream mis) throws IOException {
+        if(mis.has(MagmaFormat.LEGACY))
+            return readLegacy(materialPalette, mis);
+
+        byte[] skyLight = readLight(mis);
+        byte[] blockLight = readLight(mis);
+
+        //Blocks
+        byte encoding = mis.has(MagmaFormat.SECTION_ENCODINGS) ? mis.readByte() : ENCODING_PALETTED;
+        SectionPalette blocks = readBlocks(encoding, mis);
+        int sparseBackground = encoding == ENCODING_SPARSE ? 0 : -1; //Sparse palettes start with the background
+
+        short blockEntityCount = mis.readCompactShort();
+        Short2ObjectMap<NBTCompound> blockEntities = new Short2ObjectOpenHashMap<>(blockEntityCount);
+        for(int i = 0; i < blockEntityCount; i++) {
+            short sectionIndex = mis.readCompactShort();
+            blockEntities.put(sectionIndex, mis.readNBT());
+        }
+
+        //Biomes
+        int biomePaletteSize = mis.readCompactShort();
+
+        int[] biomeValues = new int[biomePaletteSize];
+        for(int i = 0; i < biomePaletteSize; i++) {
+            biomeValues[i] = mis.readCompactShort();
+        }
+
+        SectionPalette biomes = readPalette(BIOME_DIMENSION, biomeValues, mis);
+
+        return new MagmaSection(skyLight, blockLight, blocks, biomes, blockEntities, sparseBackground);
+    }
+
+    /**
+     * Reads a section of a legacy region, which stored all 4096 blocks as {@linkplain MagmaBlock}s followed by a biome index for every 4x4x4 cell.
+     */
+    private static MagmaSection readLegacy(MaterialPalette materialPalette, MagmaInputStream mis) throws IOException {
         byte[] skyLight = mis.readByteArray();
         byte[] blockLight = mis.readByteArray();
 
         //Blocks
-        var dimension = 16; //Dimension used by Palette#blocks()
-        var count = dimension * dimension * dimension;
+        SectionPalette blocks = null;
+        Short2ObjectMap<NBTCompound> blockEntities = new Short2ObjectOpenHashMap<>();
 
-        var step = Chunk.CHUNK_SECTION_SIZE / dimension;
+        for(int i = 0; i < BLOCK_DIMENSION * BLOCK_DIMENSION * BLOCK_DIMENSION; i++) {
+            MagmaBlock block = MagmaBlock.readLegacy(materialPalette, mis);
+
+            var material = block.getMaterial();
+            int reference = MaterialPalette.toReference(material.getIndex(), material.getStatePalette().findInPaletteOrAdd(block.getStateId()));
 
-        Short2ObjectMap<MagmaBlock> blocks = new Short2ObjectOpenHashMap<>(count);
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x += step) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += step) {
-                for(int z = 0; z < Chunk.CHUNK_SIZE_Z; z += step) {
-                    MagmaBlock block = MagmaBlock.read(materialPalette, mis);
-                    blocks.put(block.getSectionIndex(), block);
+            if(blocks == null)
+                blocks = new SectionPalette(BLOCK_DIMENSION, reference);
+
+            blocks.set(block.getSectionIndex(), reference);
+            if(block.getNbt() != null)
+                blockEntities.put(block.getSectionIndex(), block.getNbt());
+        }
+
+        //Biomes, same order as they were written
+        SectionPalette biomes = new SectionPalette(BIOME_DIMENSION, 0);
+        for(int x = 0; x < BIOME_DIMENSION; x++) {
+            for(int y = 0; y < BIOME_DIMENSION; y++) {
+                for(int z = 0; z < BIOME_DIMENSION; z++) {
+                    biomes.set(x, y, z, mis.readShort());
                 }
             }
         }
 
-        //Biomes
-        dimension = 4; //Dimension used by Palette#biomes()
-        count = dimension * dimension * dimension;
-
-        step = Chunk.CHUNK_SECTION_SIZE / dimension;
-
-        Byte2ObjectMap<MagmaBiome> biomes = new Byte2ObjectOpenHashMap<>(count);
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x += step) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += step) {
-                for(int z = 0; z < Chunk.CHUNK_SIZE_Z; z += step) {
-                    var biomeIndex = mis.readShort();
-                    MagmaBiome biome = biomePalette.getBiomeAt(biomeIndex);
-                    biomes.put((byte) MagmaUtils.getSectionIndex(dimension, x, y, z), biome);
+        return new MagmaSection(skyLight, blockLight, blocks, biomes, blockEntities);
+    }
+
+    /**
+     * @return The light array, absent and uniform arrays are shared instances
+     */
+    private static byte[] readLight(MagmaInputStream mis) throws IOException {
+        if(!mis.has(MagmaFormat.UNIFORM_LIGHT))
+            return mis.readByteArray();
+
+        byte sentinel = mis.readByte();
+        return switch(sentinel) {
+            case LIGHT_ABSENT -> NO_LIGHT;
+            case LIGHT_UNIFORM -> uniformLight(mis.readByte());
+            case LIGHT_FULL -> mis.readByteArray();
+            default -> throw new IOException("Unknown light sentinel: " + sentinel);
+        };
+    }
+
+    private static byte[] uniformLight(byte value) {
+        int index = value & 0xFF;
+
+        byte[] light = UNIFORM_LIGHTS.get(index);
+        if(light != null) { return light; }
+
+        light = new byte[LIGHT_LENGTH];
+        Arrays.fill(light, value);
+
+        return UNIFORM_LIGHTS.compareAndSet(index, null, light) ? light : UNIFORM_LIGHTS.get(index);
+    }
+
+    private static void writeLight(MagmaOutputStream mos, byte[] light) throws IOException {
+        if(!mos.has(MagmaFormat.UNIFORM_LIGHT)) {
+            mos.writeByteArray(light);
+            return;
+        }
+
+        if(light.length == 0) {
+            mos.writeByte(LIGHT_ABSENT);
+        } else if(light.length == LIGHT_LENGTH && isUniform(light)) {
+            mos.writeByte(LIGHT_UNIFORM);
+            mos.writeByte(light[0]);
+        } else {
+            mos.writeByte(LIGHT_FULL);
+            mos.writeByteArray(light);
+        }
+    }
+
+    /**
+     * Rough amount of memory held by the section, shared light arrays aren't counted.
+     */
+    public long estimateSize() {
+        long size = estimateSize(this.blocks) + estimateSize(this.biomes);
+        size += lightSize(this.skyLight) + lightSize(this.blockLight);
+        return size;
+    }
+
+    private static long estimateSize(SectionPalette palette) {
+        return (long) palette.getData().length * Long.BYTES + (long) palette.getPaletteSize() * Integer.BYTES;
+    }
+
+    private static int lightSize(byte[] light) {
+        if(light.length == 0 || UNIFORM_LIGHTS.get(light[0] & 0xFF) == light) { return 0; }
+        return light.length;
+    }
+
+    private static boolean isUniform(byte[] light) {
+        byte value = light[0];
+        for(byte b : light) {
+            if(b != value) { return false; }
+        }
+
+        return true;
+    }
+
+    private static SectionPalette readBlocks(byte encoding, MagmaInputStream mis) throws IOException {
+        switch(encoding) {
+            case ENCODING_UNIFORM -> {
+                return new SectionPalette(BLOCK_DIMENSION, readReference(mis));
+            }
+            case ENCODING_SPARSE -> {
+                int[] values = readReferences(mis);
+                int background = mis.readCompactShort();
+
+                var blocks = new SectionPalette(BLOCK_DIMENSION, values[background]);
+
+                int count = mis.readCompactShort();
+                for(int i = 0; i < count; i++) {
+                    int sectionIndex = mis.readCompactShort();
+                    blocks.set(sectionIndex, values[mis.readCompactShort()]);
                 }
+
+                return blocks;
+            }
+            case ENCODING_PALETTED -> {
+                return readPalette(BLOCK_DIMENSION, readReferences(mis), mis);
             }
+            default -> throw new IOException("Unknown section encoding: " + encoding);
         }
+    }
+
+    private static int readReference(MagmaInputStream mis) throws IOException {
+        var materialIndex = mis.readCompactInt();
+        var stateIndex = mis.readCompactShort();
+        return MaterialPalette.toReference(materialIndex, stateIndex);
+    }
+
+    private static int[] readReferences(MagmaInputStream mis) throws IOException {
+        int paletteSize = mis.readCompactShort();
 
-        return new MagmaSection(skyLight, blockLight, blocks, biomes);
+        int[] references = new int[paletteSize];
+        for(int i = 0; i < paletteSize; i++) {
+            references[i] = readReference(mis);
+        }
+
+        return references;
     }
 
+    private static SectionPalette readPalette(int dimension, int[] values, MagmaInputStream mis) throws IOException {
+        if(values.length == 0)
+            throw new IOException("Section palette can't be empty");
+
+        final int size = dimension * dimension * dimension;
+        long[] data = mis.readLongArray(SectionPalette.dataLength(size, SectionPalette.bitsFor(values.length)));
+
+        return new SectionPalette(dimension, values, data);
+    }
+
+    /**
+     * Writes the section-local palettes followed by their indices packed at the fewest bits the palette allows,
+     * a section made of a single block doesn't write any indices. With {@linkplain MagmaFormat#SECTION_ENCODINGS}
+     * uniform sections only write their block and sparse sections only the blocks that differ from the most common one.
+     */
     public void write(MagmaOutputStream mos) throws IOException {
-        mos.writeByteArray(this.skyLight);
-        mos.writeByteArray(this.blockLight);
+        writeLight(mos, this.skyLight);
+        writeLight(mos, this.blockLight);
 
         //Blocks
-        var dimension = 16; //Dimension used by Palette#blocks()
-        var step = Chunk.CHUNK_SECTION_SIZE / dimension;
-
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x += step) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += step) {
-                for(int z = 0; z < Chunk.CHUNK_SIZE_Z; z += step) { //Multiple of 1
-                    var sectionIndex = (short) MagmaUtils.getSectionIndex(dimension, x, y, z);
-                    var block = this.blocks.get(sectionIndex);
-                    block.write(mos);
-                }
-            }
+        writeBlocks(mos, this.blocks.compacted());
+
+        mos.writeCompactShort(this.blockEntities.size());
+        for(var ent : Short2ObjectMaps.fastIterable(this.blockEntities)) {
+            mos.writeCompactShort(ent.getShortKey());
+            mos.writeNBT(ent.getValue());
         }
 
         //Biomes
-        dimension = 4; //Dimension used by Palette#biomes()
-        step = Chunk.CHUNK_SECTION_SIZE / dimension;
-
-        for(int x = 0; x < Chunk.CHUNK_SIZE_X; x += step) {
-            for(int y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += step) {
-                for(int z = 0; z < Chunk.CHUNK_SIZE_Z; z += step) { //Multiple of 4
-                    var sectionIndex = (byte) MagmaUtils.getSectionIndex(dimension, x, y, z);
-                    var biome = this.biomes.containsKey(sectionIndex) ? this.biomes.get(sectionIndex) : null;
-                    var biomeIndex = biome != null ? biome.getIndex() : 0;
-                    mos.writeShort(biomeIndex);
-                }
-            }
+        var biomes = this.biomes.compacted();
+
+        mos.writeCompactShort(biomes.getPaletteSize());
+        for(int i = 0; i < biomes.getPaletteSize(); i++) {
+            mos.writeCompactShort(biomes.getValue(i));
+        }
+
+        mos.writeLongArray(biomes.getData());
+    }
+
+    private static void writeBlocks(MagmaOutputStream mos, SectionPalette blocks) throws IOException {
+        if(!mos.has(MagmaFormat.SECTION_ENCODINGS)) {
+            writeReferences(mos, blocks);
+            mos.writeLongArray(blocks.getData());
+            return;
+        }
+
+        if(blocks.isUniform()) {
+            mos.writeByte(ENCODING_UNIFORM);
+            writeReference(mos, blocks.getValue(0));
+            return;
+        }
+
+        int[] counts = blocks.getValueCounts();
+        int background = mostCommon(counts);
+
+        int count = blocks.size() - counts[background];
+        if(count > SPARSE_LIMIT) {
+            mos.writeByte(ENCODING_PALETTED);
+            writeReferences(mos, blocks);
+            mos.writeLongArray(blocks.getData());
+            return;
+        }
+
+        mos.writeByte(ENCODING_SPARSE);
+        writeReferences(mos, blocks);
+        mos.writeCompactShort(background);
+
+        mos.writeCompactShort(count);
+        for(int i = 0; i < blocks.size(); i++) {
+            int paletteIndex = blocks.getPaletteIndex(i);
+            if(paletteIndex == background) { continue; }
+
+            mos.writeCompactShort(i);
+            mos.writeCompactShort(paletteIndex);
+        }
+    }
+
+    private static void writeReference(MagmaOutputStream mos, int reference) throws IOException {
+        mos.writeCompactInt(MaterialPalette.getMaterialIndex(reference));
+        mos.writeCompactShort(MaterialPalette.getStateIndex(reference));
+    }
+
+    private static void writeReferences(MagmaOutputStream mos, SectionPalette blocks) throws IOException {
+        mos.writeCompactShort(blocks.getPaletteSize());
+        for(int i = 0; i < blocks.getPaletteSize(); i++) {
+            writeReference(mos, blocks.getValue(i));
         }
     }
 
+    /**
+     * @return Palette index of the most common value if at most {@linkplain #SPARSE_LIMIT} entries differ from it, otherwise -1
+     */
+    public static int findSparseBackground(SectionPalette palette) {
+        int[] counts = palette.getValueCounts();
+        int background = mostCommon(counts);
+
+        return palette.size() - counts[background] <= SPARSE_LIMIT ? background : -1;
+    }
+
+    private static int mostCommon(int[] counts) {
+        int index = 0;
+        for(int i = 1; i < counts.length; i++) {
+            if(counts[i] > counts[index]) { index = i; }
+        }
+
+        return index;
+    }
+
 }
@@ -2,28 +2,56 @@ package cc.minetale.magma;
 
 import cc.minetale.magma.palette.BiomePalette;
 import cc.minetale.magma.palette.MaterialPalette;
+import cc.minetale.magma.palette.PropertyDictionary;
+import cc.minetale.magma.palette.SectionPalette;
 import cc.minetale.magma.palette.StatePalette;
+import cc.minetale.magma.stream.BufferPool;
+import cc.minetale.magma.stream.CompressionOptions;
+import cc.minetale.magma.stream.GrowableBuffer;
+import cc.minetale.magma.stream.MagmaDictionary;
 import cc.minetale.magma.stream.MagmaInputStream;
 import cc.minetale.magma.stream.MagmaOutputStream;
 import cc.minetale.magma.type.*;
+import com.github.luben.zstd.Zstd;
 import it.unimi.dsi.fastutil.bytes.Byte2ObjectMap;
 import it.unimi.dsi.fastutil.bytes.Byte2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
 import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.coordinate.Vec;
 import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.DynamicChunk;
+import net.minestom.server.instance.Instance;
 import net.minestom.server.instance.block.Block;
 import net.minestom.server.utils.NamespaceID;
 import net.minestom.server.world.DimensionType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+import org.jglrxavpok.hephaistos.parser.SNBTParser;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
 
 class MagmaTests {
 
@@ -33,21 +61,37 @@ class MagmaTests {
         var beforeMaterial = generateMaterial();
 
         //Writing
+        var beforeDictionary = new PropertyDictionary();
+        beforeMaterial.getStatePalette().collectProperties(beforeDictionary, beforeMaterial);
+
         MagmaOutputStream mos = new MagmaOutputStream();
-        beforeMaterial.write(mos);
+        beforeDictionary.write(mos);
+        beforeMaterial.write(beforeDictionary, mos);
         mos.flush();
 
         //Intermediary
         MagmaInputStream mis = flipStream(mos);
 
         //Reading
-        var afterMaterial = MagmaMaterial.read(beforeMaterial.getIndex(), mis);
+        var afterDictionary = PropertyDictionary.read(mis);
+        var afterMaterial = MagmaMaterial.read(beforeMaterial.getIndex(), afterDictionary, mis);
         assertNotNull(afterMaterial);
 
         //Comparison
         compareMaterials(beforeMaterial, afterMaterial);
     }
 
+    @Test
+    void material_KeepsDefaultState() {
+        //Setup
+        var block = Block.OAK_STAIRS.withProperty("facing", "west");
+        var material = new MagmaMaterial(0, false, block);
+
+        //Comparison
+        assertEquals(Block.OAK_STAIRS.stateId(), material.getMaterial().stateId());
+        assertEquals(block.stateId(), material.getStatePalette().getStateAt((short) 0));
+    }
+
     MagmaMaterial generateMaterial() {
         var materialIndex = 1234;
         var isCustom = false;
@@ -110,7 +154,7 @@ class MagmaTests {
         assertEquals(beforeBlock.getSectionIndex(), afterBlock.getSectionIndex());
         compareMaterials(beforeBlock.getMaterial(), afterBlock.getMaterial());
         assertEquals(beforeBlock.getStateId(), afterBlock.getStateId());
-        assertEquals(beforeBlock.getSnbt(), afterBlock.getSnbt());
+        assertEquals(beforeBlock.getNbt(), afterBlock.getNbt());
     }
 
     @Test
@@ -147,35 +191,206 @@ class MagmaTests {
         assertEquals(beforeBiome.getName(), afterBiome.getName());
     }
 
+    @Test
+    void compactPrimitives_CorrectWriteAndRead() throws Exception {
+        //Setup
+        int[] values = { 0, 1, 127, 128, 16383, 16384, 65535, Integer.MAX_VALUE, -1 };
+        String string = "minecraft:oak_stairs \u0105\u0119";
+
+        //Writing
+        MagmaOutputStream mos = new MagmaOutputStream();
+        for(int value : values) {
+            mos.writeVarInt(value);
+        }
+        mos.writeStringUtf8(string);
+        mos.flush();
+
+        //Intermediary
+        MagmaInputStream mis = flipStream(mos);
+
+        //Reading and comparison
+        for(int value : values) {
+            assertEquals(value, mis.readVarInt());
+        }
+        assertEquals(string, mis.readStringUtf8());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void lines_CorrectRead() throws Exception {
+        //Setup
+        MagmaInputStream mis = new MagmaInputStream(new byte[] { 'a', '\r', '\n', 'b', '\r', 'c', '\n', '\n', 'd' });
+
+        //Reading and comparison
+        assertEquals("a", mis.readLine());
+        assertEquals("b", mis.readLine());
+        assertEquals("c", mis.readLine());
+        assertEquals("", mis.readLine());
+        assertEquals("d", mis.readLine());
+        assertNull(mis.readLine());
+    }
+
+    @Test
+    void bufferPool_RetainsBoundedBytes() {
+        //Setup
+        List<GrowableBuffer> buffers = new ArrayList<>();
+        for(int i = 0; i < 16; i++) {
+            var buffer = BufferPool.acquire();
+            buffer.ensureCapacity(BufferPool.MAX_RETAINED_CAPACITY);
+            buffers.add(buffer);
+        }
+
+        var oversized = BufferPool.acquire();
+        oversized.ensureCapacity(BufferPool.MAX_RETAINED_CAPACITY + 1);
+
+        //Releasing
+        buffers.forEach(BufferPool::release);
+        BufferPool.release(oversized);
+
+        //Comparison
+        assertTrue(BufferPool.getRetainedBytes() <= BufferPool.MAX_RETAINED_BYTES);
+        assertTrue(BufferPool.getRetainedBytes() > 0);
+
+        var reused = BufferPool.acquire();
+        assertEquals(0, reused.size());
+        assertTrue(reused.capacity() <= BufferPool.MAX_RETAINED_CAPACITY);
+        BufferPool.release(reused);
+    }
+
+    @Test
+    void spiralOrder_ClosestFirstAndSkipsEmpty() {
+        //Setup
+        var xSize = 5;
+        var zSize = 3;
+
+        var populatedChunks = new BitSet(xSize * zSize);
+        populatedChunks.set(0, xSize * zSize);
+        populatedChunks.clear(MagmaUtils.getMagmaChunkIndex(3, 1, xSize));
+
+        //Ordering
+        int[] order = MagmaUtils.getSpiralOrder(populatedChunks, xSize, zSize, 2, 1);
+
+        //Comparison
+        assertEquals(populatedChunks.cardinality(), order.length);
+        assertEquals(MagmaUtils.getMagmaChunkIndex(2, 1, xSize), order[0]);
+        assertEquals(populatedChunks.cardinality(), Arrays.stream(order).distinct().count());
+
+        int previousRing = 0;
+        for(int index : order) {
+            assertTrue(populatedChunks.get(index));
+
+            var position = MagmaUtils.getPositionFromMagmaIndex(index, xSize);
+            int ring = Math.max(Math.abs(position.blockX() - 2), Math.abs(position.blockZ() - 1));
+            assertTrue(ring >= previousRing);
+            previousRing = ring;
+        }
+    }
+
+    @Test
+    void executors_VirtualThreadsOnlyWhenSupported() throws Exception {
+        //Setup
+        var supported = Runtime.version().feature() >= 21;
+        assertEquals(supported, MagmaExecutors.supportsVirtualThreads());
+
+        //Creating
+        var executor = MagmaExecutors.newVirtualThreadExecutor();
+        assertEquals(supported, executor != null);
+
+        //Comparison, falls back to a bounded pool without them
+        var defaultExecutor = MagmaExecutors.newDefaultExecutor("Test");
+        try {
+            var thread = defaultExecutor.submit(Thread::currentThread).get();
+            assertEquals(supported, !thread.getName().startsWith("Magma-Test-"));
+        } finally {
+            defaultExecutor.shutdownNow();
+            if(executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void executors_BoundedPoolUsesNamedDaemonThreads() throws Exception {
+        //Setup
+        assertThrows(IllegalArgumentException.class, () -> MagmaExecutors.newBoundedExecutor("Test", 0));
+        var executor = MagmaExecutors.newBoundedExecutor("Test", 2);
+
+        try {
+            //Running
+            var thread = executor.submit(Thread::currentThread).get();
+
+            //Comparison
+            assertTrue(thread.isDaemon());
+            assertTrue(thread.getName().matches("Magma-Test-\\d+"));
+            assertEquals(4, (int) executor.submit(() -> 2 + 2).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Nested
     class PaletteTests {
 
+        @Test
+        void sectionPalette_KeepsValuesWhileGrowing() {
+            var palette = new SectionPalette(16, 7);
+            assertTrue(palette.isUniform());
+            assertEquals(0, palette.getBitsPerEntry());
+
+            for(int i = 0; i < palette.size(); i++) {
+                palette.set(i, i % 300);
+            }
+
+            assertEquals(300, palette.getPaletteSize());
+            assertEquals(SectionPalette.bitsFor(palette.getPaletteSize()), palette.getBitsPerEntry());
+
+            for(int i = 0; i < palette.size(); i++) {
+                assertEquals(i % 300, palette.get(i));
+            }
+
+            var copy = new SectionPalette(16, palette.getValues(), palette.getData());
+            for(int i = 0; i < palette.size(); i++) {
+                assertEquals(palette.get(i), copy.get(i));
+            }
+        }
+
         @Test
         void statePalette_CorrectWriteAndRead() throws Exception {
             //Setup
             var beforeStatePalette = generateStatePalette();
 
+            var block = Block.fromStateId(beforeStatePalette.getStateAt((short) 0));
+            assertNotNull(block);
+
+            var material = new MagmaMaterial(123, false, block);
+
             //Writing
+            var dictionary = new PropertyDictionary();
+            beforeStatePalette.collectProperties(dictionary, material);
+
             MagmaOutputStream mos = new MagmaOutputStream();
-            beforeStatePalette.write(mos);
+            beforeStatePalette.write(mos, dictionary, material);
             mos.flush();
 
             //Intermediary
             MagmaInputStream mis = flipStream(mos);
 
-            var block = Block.fromStateId(beforeStatePalette.getStateAt((short) 0));
-            assertNotNull(block);
-
             //Reading
-            var material = new MagmaMaterial(123, false, block);
-
-            var afterStatePalette = StatePalette.read(mis, material);
+            var afterStatePalette = StatePalette.read(mis, dictionary, material);
             assertNotNull(afterStatePalette);
 
             //Comparison
             compareStatePalettes(beforeStatePalette, afterStatePalette);
         }
 
+        @Test
+        void unknownProperties_ResolveToDefaultState() {
+            //Reading
+            var stateId = PropertyDictionary.resolveState(Block.OAK_STAIRS, new String[] { "facing" }, new String[] { "nowhere" });
+
+            //Comparison
+            assertEquals(Block.OAK_STAIRS.stateId(), stateId);
+        }
+
         @NotNull private StatePalette generateStatePalette() {
             var palette = new StatePalette();
             palette.findInPaletteOrAdd((short) 123);
@@ -306,71 +521,129 @@ class MagmaTests {
             compareSections(beforeSection, afterSection);
         }
 
+        @Test
+        void section_UniformLightWriteAndRead() throws Exception {
+            //Setup
+            var materialPalette = new MaterialPalette();
+            var biomePalette = new BiomePalette();
+
+            var generated = generateSection(materialPalette, biomePalette);
+
+            var skyLight = new byte[MagmaSection.LIGHT_LENGTH];
+            Arrays.fill(skyLight, (byte) 0xFF);
+
+            var beforeSection = new MagmaSection(skyLight, new byte[0],
+                    generated.getBlocks(), generated.getBiomes(), generated.getBlockEntities());
+
+            //Writing
+            MagmaOutputStream mos = new MagmaOutputStream();
+            mos.setFlags(MagmaFormat.UNIFORM_LIGHT);
+            beforeSection.write(mos);
+            beforeSection.write(mos);
+            mos.flush();
+
+            //Intermediary
+            MagmaInputStream mis = flipStream(mos);
+            mis.setFlags(MagmaFormat.UNIFORM_LIGHT);
+
+            //Reading
+            var afterSection = MagmaSection.read(materialPalette, biomePalette, mis);
+            var otherSection = MagmaSection.read(materialPalette, biomePalette, mis);
+
+            //Comparison
+            compareSections(beforeSection, afterSection);
+            assertSame(afterSection.getSkyLight(), otherSection.getSkyLight());
+        }
+
+        @Test
+        void section_EncodingsWriteAndRead() throws Exception {
+            //Setup
+            var materialPalette = new MaterialPalette();
+            var biomePalette = new BiomePalette();
+
+            var dense = generateSection(materialPalette, biomePalette);
+
+            var uniformBlocks = new SectionPalette(MagmaSection.BLOCK_DIMENSION, materialPalette.findReferenceOrAdd(Block.STONE));
+
+            var sparseBlocks = new SectionPalette(MagmaSection.BLOCK_DIMENSION, materialPalette.findReferenceOrAdd(Block.AIR));
+            sparseBlocks.set(0, materialPalette.findReferenceOrAdd(Block.GRASS_BLOCK));
+            sparseBlocks.set(4095, materialPalette.findReferenceOrAdd(Block.STONE));
+
+            var sections = new MagmaSection[] {
+                    dense,
+                    new MagmaSection(dense.getSkyLight(), dense.getBlockLight(), uniformBlocks, dense.getBiomes(), new Short2ObjectOpenHashMap<>()),
+                    new MagmaSection(dense.getSkyLight(), dense.getBlockLight(), sparseBlocks, dense.getBiomes(), new Short2ObjectOpenHashMap<>())
+            };
+
+            assertEquals(-1, MagmaSection.findSparseBackground(dense.getBlocks()));
+            assertEquals(0, MagmaSection.findSparseBackground(sparseBlocks));
+
+            for(var beforeSection : sections) {
+                //Writing
+                MagmaOutputStream mos = new MagmaOutputStream();
+                mos.setFlags(MagmaFormat.SECTION_ENCODINGS);
+                beforeSection.write(mos);
+                mos.flush();
+
+                //Intermediary
+                MagmaInputStream mis = flipStream(mos);
+                mis.setFlags(MagmaFormat.SECTION_ENCODINGS);
+
+                //Reading
+                var afterSection = MagmaSection.read(materialPalette, biomePalette, mis);
+                assertNotNull(afterSection);
+
+                //Comparison
+                compareSections(beforeSection, afterSection);
+                assertEquals(beforeSection == sections[2] ? 0 : -1, afterSection.getSparseBackground());
+            }
+        }
+
         @NotNull private MagmaSection generateSection(MaterialPalette materialPalette, BiomePalette biomePalette) {
             var skyLight = new byte[]{0, 1, 2};
             var blockLight = new byte[]{0, 1, 2};
 
-            Short2ObjectMap<MagmaBlock> blocks = new Short2ObjectOpenHashMap<>();
+            var blocks = new SectionPalette(MagmaSection.BLOCK_DIMENSION, materialPalette.findReferenceOrAdd(Block.AIR));
+            Short2ObjectMap<NBTCompound> blockEntities = new Short2ObjectOpenHashMap<>();
             for(byte x = 0; x < Chunk.CHUNK_SIZE_X; x++) {
                 for(byte y = 0; y < Chunk.CHUNK_SECTION_SIZE; y++) {
                     for(byte z = 0; z < Chunk.CHUNK_SIZE_Z; z++) {
                         var sectionIndex = (short) MagmaUtils.getSectionIndex(16, x, y, z);
-                        var block = generateBlock(sectionIndex, sectionIndex % 2 == 0 ? Block.GRASS_BLOCK : Block.AIR, materialPalette);
-                        blocks.put(sectionIndex, block);
+                        var block = sectionIndex % 2 == 0 ? Block.GRASS_BLOCK : Block.AIR;
+                        blocks.set(sectionIndex, materialPalette.findReferenceOrAdd(block));
                     }
                 }
             }
 
-            Byte2ObjectMap<MagmaBiome> biomes = new Byte2ObjectOpenHashMap<>();
-            for(byte x = 0; x < Chunk.CHUNK_SIZE_X; x += 4) {
-                for(byte y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += 4) {
-                    for(byte z = 0; z < Chunk.CHUNK_SIZE_Z; z += 4) {
-                        var sectionIndex = (byte) MagmaUtils.getSectionIndex(4, x, y, z);
+            var biomes = new SectionPalette(MagmaSection.BIOME_DIMENSION, 0);
+            for(byte x = 0; x < MagmaSection.BIOME_DIMENSION; x++) {
+                for(byte y = 0; y < MagmaSection.BIOME_DIMENSION; y++) {
+                    for(byte z = 0; z < MagmaSection.BIOME_DIMENSION; z++) {
                         var biome = generateBiome(biomePalette);
-                        biomes.put(sectionIndex, biome);
+                        biomes.set(x, y, z, biome.getIndex());
                     }
                 }
             }
 
-            return new MagmaSection(skyLight, blockLight, blocks, biomes);
+            return new MagmaSection(skyLight, blockLight, blocks, biomes, blockEntities);
         }
 
         void compareSections(MagmaSection beforeSection, MagmaSection afterSection) {
             assertArrayEquals(beforeSection.getSkyLight(), afterSection.getSkyLight());
             assertArrayEquals(beforeSection.getBlockLight(), afterSection.getBlockLight());
 
-            Short2ObjectMap<MagmaBlock> beforeBlocks = beforeSection.getBlocks();
-            Short2ObjectMap<MagmaBlock> afterBlocks = afterSection.getBlocks();
-
-            var blocksSize = beforeBlocks.size();
-            assertEquals(blocksSize, afterBlocks.size());
+            compareSectionPalettes(beforeSection.getBlocks(), afterSection.getBlocks());
+            compareSectionPalettes(beforeSection.getBiomes(), afterSection.getBiomes());
 
-            for(byte x = 0; x < Chunk.CHUNK_SIZE_X; x++) {
-                for(byte y = 0; y < Chunk.CHUNK_SECTION_SIZE; y++) {
-                    for(byte z = 0; z < Chunk.CHUNK_SIZE_Z; z++) {
-                        var sectionIndex = (short) MagmaUtils.getSectionIndex(16, x, y, z);
-                        var beforeBlock = beforeBlocks.get(sectionIndex);
-                        var afterBlock = afterBlocks.get(sectionIndex);
-                        compareBlocks(beforeBlock, afterBlock);
-                    }
-                }
-            }
-
-            Byte2ObjectMap<MagmaBiome> beforeBiomes = beforeSection.getBiomes();
-            Byte2ObjectMap<MagmaBiome> afterBiomes = afterSection.getBiomes();
+            assertEquals(beforeSection.getBlockEntities(), afterSection.getBlockEntities());
+        }
 
-            var biomesSize = beforeBiomes.size();
-            assertEquals(biomesSize, afterBiomes.size());
+        void compareSectionPalettes(SectionPalette beforePalette, SectionPalette afterPalette) {
+            var size = beforePalette.size();
+            assertEquals(size, afterPalette.size());
 
-            for(byte x = 0; x < Chunk.CHUNK_SIZE_X; x += 4) {
-                for(byte y = 0; y < Chunk.CHUNK_SECTION_SIZE; y += 4) {
-                    for(byte z = 0; z < Chunk.CHUNK_SIZE_Z; z += 4) {
-                        var sectionIndex = (byte) MagmaUtils.getSectionIndex(4, x, y, z);
-                        var beforeBiome = beforeBiomes.get(sectionIndex);
-                        var afterBiome = afterBiomes.get(sectionIndex);
-                        compareBiomes(beforeBiome, afterBiome);
-                    }
-                }
+            for(int i = 0; i < size; i++) {
+                assertEquals(beforePalette.get(i), afterPalette.get(i));
             }
         }
 
@@ -473,6 +746,316 @@ class MagmaTests {
             compareRegion(beforeRegion, afterRegion);
         }
 
+        @Test
+        void legacyRegion_CorrectRead() throws Exception {
+            //Setup
+            var stairs = Block.OAK_STAIRS.withProperty("facing", "east");
+            var nbt = (NBTCompound) new SNBTParser(new StringReader("{Lock:\"Magma\"}")).parse();
+
+            short stairsIndex = 1;
+            short chestIndex = 5;
+
+            //Writing, the unversioned layout from before the header was added
+            MagmaOutputStream dataMos = new MagmaOutputStream();
+
+            dataMos.writeInt(3);
+            writeLegacyMaterial(dataMos, Block.STONE);
+            writeLegacyMaterial(dataMos, stairs);
+            writeLegacyMaterial(dataMos, Block.CHEST);
+
+            dataMos.writeShort(1);
+            dataMos.writeStringShort("minecraft:plains");
+
+            MagmaOutputStream chunksMos = new MagmaOutputStream();
+            var populatedSections = new BitSet();
+            populatedSections.set(0);
+            chunksMos.writeBitSetByte(populatedSections);
+
+            chunksMos.writeByteArray(new byte[MagmaSection.LIGHT_LENGTH]);
+            chunksMos.writeByteArray(new byte[MagmaSection.LIGHT_LENGTH]);
+            for(short i = 0; i < 4096; i++) {
+                chunksMos.writeShort(i);
+                chunksMos.writeInt(i == stairsIndex ? 1 : i == chestIndex ? 2 : 0);
+                chunksMos.writeShort(0);
+
+                chunksMos.writeBoolean(i == chestIndex);
+                if(i == chestIndex)
+                    chunksMos.writeStringInt(nbt.toSNBT());
+            }
+            for(int i = 0; i < 64; i++) {
+                chunksMos.writeShort(0);
+            }
+            chunksMos.flush();
+
+            dataMos.writeMagma(chunksMos);
+            dataMos.flush();
+
+            byte[] data = dataMos.toByteArray();
+
+            MagmaOutputStream mos = new MagmaOutputStream();
+            mos.writeShort(2);
+            mos.writeShort(1);
+
+            var populatedChunks = new BitSet();
+            populatedChunks.set(1);
+            mos.writeBitSetInt(populatedChunks);
+
+            mos.writeCompressed(data.length, Zstd.compress(data));
+            mos.flush();
+
+            //Reading
+            var region = MagmaRegion.read(flipStream(mos));
+            assertEquals(0, region.getFlags());
+            assertNull(region.getChunk(0));
+
+            //Comparison
+            var section = region.getChunk(1).getSections().get((byte) 0);
+            var materialPalette = region.getMaterialPalette();
+
+            assertEquals(stairs.stateId(), materialPalette.getStateId(section.getBlocks().get(stairsIndex)));
+            assertEquals(Block.CHEST.stateId(), materialPalette.getStateId(section.getBlocks().get(chestIndex)));
+            assertEquals(Block.STONE.stateId(), materialPalette.getStateId(section.getBlocks().get(100)));
+            assertEquals(nbt, section.getBlockEntities().get(chestIndex));
+            assertEquals(1, section.getBlockEntities().size());
+
+            //Saving writes the current layout
+            MagmaOutputStream savedMos = new MagmaOutputStream();
+            region.write(savedMos);
+            savedMos.flush();
+
+            compareRegion(region, MagmaRegion.read(flipStream(savedMos)));
+        }
+
+        void writeLegacyMaterial(MagmaOutputStream mos, Block state) throws IOException {
+            mos.writeBoolean(false);
+            mos.writeStringShort(state.namespace().asString());
+
+            mos.writeShort(1);
+            for(var property : state.properties().entrySet()) {
+                mos.writeStringShort(property.getKey());
+                mos.writeStringShort(property.getValue());
+            }
+        }
+
+        @Test
+        void indexedRegion_CorrectWriteAndRead() throws Exception {
+            //Setup
+            var materialPalette = new MaterialPalette();
+            var biomePalette = new BiomePalette();
+
+            var beforeRegion = generateRegion(materialPalette, biomePalette);
+
+            //Writing
+            MagmaOutputStream mos = new MagmaOutputStream();
+            beforeRegion.write(mos, MagmaFormat.INDEXED);
+            mos.flush();
+
+            //Intermediary
+            MagmaInputStream mis = flipStream(mos);
+
+            //Reading
+            var afterRegion = MagmaRegion.read(mis);
+            assertNotNull(afterRegion);
+            assertTrue(afterRegion.isIndexed());
+            assertTrue(afterRegion.getChunks().isEmpty());
+
+            //Comparison
+            compareRegion(beforeRegion, afterRegion);
+        }
+
+        @Test
+        void indexedRegion_ReleasedChunkDecodedAgain() throws Exception {
+            //Setup
+            var beforeRegion = generateRegion(new MaterialPalette(), new BiomePalette());
+
+            //Writing
+            MagmaOutputStream mos = new MagmaOutputStream();
+            beforeRegion.write(mos, MagmaFormat.INDEXED);
+            mos.flush();
+
+            //Reading
+            var afterRegion = MagmaRegion.read(flipStream(mos));
+            var index = afterRegion.getPopulatedChunks().nextSetBit(0);
+            assertNotNull(afterRegion.getChunk(index));
+
+            //Releasing
+            assertTrue(afterRegion.releaseChunk(index));
+            assertFalse(afterRegion.releaseChunk(index));
+            assertTrue(afterRegion.getChunks().isEmpty());
+
+            //Comparison
+            compareChunks(beforeRegion.getChunk(index), afterRegion.getChunk(index));
+            assertFalse(beforeRegion.releaseChunk(index));
+        }
+
+        @Test
+        void indexedRegion_WritingKeepsChunksReleased() throws Exception {
+            for(int flags : new int[] { 0, MagmaFormat.INDEXED, MagmaFormat.COMPACT | MagmaFormat.CHUNK_LENGTHS }) {
+                //Setup
+                var beforeRegion = generateRegion(new MaterialPalette(), new BiomePalette());
+
+                MagmaOutputStream mos = new MagmaOutputStream();
+                beforeRegion.write(mos, MagmaFormat.INDEXED);
+                mos.flush();
+
+                var indexedRegion = MagmaRegion.read(flipStream(mos));
+                var index = indexedRegion.getPopulatedChunks().nextSetBit(0);
+                assertNotNull(indexedRegion.getChunk(index));
+                assertTrue(indexedRegion.releaseChunk(index));
+
+                //Writing
+                MagmaOutputStream writtenMos = new MagmaOutputStream();
+                indexedRegion.write(writtenMos, flags);
+                writtenMos.flush();
+                assertTrue(indexedRegion.getChunks().isEmpty());
+
+                //Reading
+                var afterRegion = MagmaRegion.read(flipStream(writtenMos));
+
+                //Comparison
+                compareRegion(beforeRegion, afterRegion);
+            }
+        }
+
+        @Test
+        void region_CorrectStreamAndRead() throws Exception {
+            for(int flags : new int[] { 0, MagmaFormat.INDEXED, MagmaFormat.COMPACT, MagmaFormat.COMPACT | MagmaFormat.CHUNK_LENGTHS, MagmaFormat.INDEXED | MagmaFormat.COMPACT | MagmaFormat.UNIFORM_LIGHT | MagmaFormat.SECTION_ENCODINGS }) {
+                //Setup
+                var materialPalette = new MaterialPalette();
+                var biomePalette = new BiomePalette();
+
+                var beforeRegion = generateRegion(materialPalette, biomePalette);
+
+                //Writing
+                var path = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+                assertTrue(MagmaWriter.write(beforeRegion, path, flags));
+
+                //Reading
+                var afterRegion = MagmaRegion.read(new MagmaInputStream(Files.readAllBytes(path)));
+                assertNotNull(afterRegion);
+                assertEquals(flags, afterRegion.getFlags());
+
+                //Comparison
+                compareRegion(beforeRegion, afterRegion);
+
+                Files.delete(path);
+            }
+        }
+
+        @Test
+        void missingChunk_FailsWriteAndKeepsFile() throws Exception {
+            for(int flags : new int[] { 0, MagmaFormat.INDEXED, MagmaFormat.CHUNK_LENGTHS }) {
+                //Setup
+                var beforeRegion = generateRegion(new MaterialPalette(), new BiomePalette());
+
+                var path = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+                assertTrue(MagmaWriter.write(beforeRegion, path, flags));
+                var before = Files.readAllBytes(path);
+
+                //Populated, but there's nothing to write
+                var populatedChunks = (BitSet) beforeRegion.getPopulatedChunks().clone();
+                var chunks = new Long2ObjectOpenHashMap<>(beforeRegion.getChunks());
+                chunks.remove(populatedChunks.nextSetBit(0));
+
+                var brokenRegion = new MagmaRegion(beforeRegion.getXSize(), beforeRegion.getZSize(), populatedChunks,
+                        beforeRegion.getMaterialPalette(), beforeRegion.getBiomePalette(), chunks);
+
+                //Writing
+                assertFalse(MagmaWriter.write(brokenRegion, path, flags));
+
+                //Comparison
+                assertArrayEquals(before, Files.readAllBytes(path));
+
+                Files.delete(path);
+            }
+        }
+
+        @Test
+        void failedRead_CompletesExceptionally() throws Exception {
+            //Setup
+            var missingPath = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+            Files.delete(missingPath);
+
+            var corruptPath = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+            Files.write(corruptPath, new byte[] { (byte) 0x80, 0, 0, 0 });
+
+            //Reading
+            for(var future : List.of(MagmaReader.read(missingPath), MagmaReader.readMapped(missingPath))) {
+                var exception = assertThrows(CompletionException.class, future::join);
+                assertTrue(exception.getCause() instanceof NoSuchFileException);
+            }
+
+            for(var future : List.of(MagmaReader.read(corruptPath), MagmaReader.readMapped(corruptPath))) {
+                var exception = assertThrows(CompletionException.class, future::join);
+                assertTrue(exception.getCause() instanceof IOException);
+            }
+
+            Files.delete(corruptPath);
+        }
+
+        @Test
+        void codecRegion_CorrectStreamAndRead() throws Exception {
+            //Setup
+            var beforeRegion = generateRegion(new MaterialPalette(), new BiomePalette());
+
+            for(var compression : new CompressionOptions[] { CompressionOptions.DEFAULT, CompressionOptions.LZ4, CompressionOptions.UNCOMPRESSED }) {
+                for(int flags : new int[] { 0, MagmaFormat.INDEXED, MagmaFormat.CHUNK_LENGTHS }) {
+                    //Writing
+                    var path = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+                    assertTrue(MagmaWriter.write(beforeRegion, path, flags, compression));
+
+                    //Reading
+                    var afterRegion = MagmaRegion.read(new MagmaInputStream(Files.readAllBytes(path)));
+                    assertNotNull(afterRegion);
+                    assertEquals(flags, afterRegion.getFlags());
+                    assertSame(compression.codec(), afterRegion.getCodec());
+
+                    //Comparison
+                    compareRegion(beforeRegion, afterRegion);
+
+                    Files.delete(path);
+                }
+            }
+        }
+
+        @Test
+        void dictionaryRegion_CorrectWriteAndRead() throws Exception {
+            //Setup
+            List<MagmaRegion> library = new ArrayList<>();
+            for(int i = 0; i < 16; i++) {
+                library.add(generateRegion(new MaterialPalette(), new BiomePalette()));
+            }
+
+            var dictionary = MagmaDictionary.register(MagmaDictionaryTrainer.train(library, 16 * 1024));
+            var beforeRegion = library.get(0);
+
+            byte[] data = null;
+            try {
+                for(int flags : new int[] { 0, MagmaFormat.INDEXED, MagmaFormat.CHUNK_LENGTHS }) {
+                    //Writing
+                    MagmaOutputStream mos = new MagmaOutputStream();
+                    mos.setCompression(CompressionOptions.DEFAULT.withDictionary(dictionary));
+                    beforeRegion.write(mos, flags);
+                    data = mos.toByteArray();
+
+                    //Reading
+                    var afterRegion = MagmaRegion.read(new MagmaInputStream(data));
+                    assertNotNull(afterRegion);
+                    assertEquals(flags | MagmaFormat.DICTIONARY, afterRegion.getFlags());
+                    assertSame(dictionary, afterRegion.getDictionary());
+
+                    //Comparison
+                    compareRegion(beforeRegion, afterRegion);
+                }
+            } finally {
+                MagmaDictionary.unregister(dictionary);
+            }
+
+            //Unknown dictionary
+            final var unregistered = data;
+            assertThrows(IOException.class, () -> MagmaRegion.read(new MagmaInputStream(unregistered)));
+        }
+
         @NotNull private MagmaRegion generateRegion(MaterialPalette materialPalette, BiomePalette biomePalette) {
             final var xSize = 2;
             final var zSize = 2;
@@ -516,6 +1099,430 @@ class MagmaTests {
 
     }
 
+    @Nested
+    class LoaderTests {
+
+        @BeforeAll
+        static void initServer() {
+            MinecraftServer.init();
+        }
+
+        @Test
+        void loader_BuildsOnExecutor() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var loader = createLoader(MagmaFormat.INDEXED);
+            Queue<Runnable> tasks = new ArrayDeque<>();
+            loader.setExecutor(tasks::add);
+
+            //Loading, nothing is built until the executor runs
+            var future = loader.loadChunk(instance, 0, 0);
+            assertFalse(future.isDone());
+            assertEquals(1, tasks.size());
+
+            tasks.poll().run();
+
+            //Comparison
+            assertTrue(future.isDone());
+            assertNotNull(future.join());
+        }
+
+        @Test
+        void loader_BuildsOnCallerWithoutExecutor() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var loader = createLoader(MagmaFormat.INDEXED);
+
+            //Loading
+            var future = loader.loadChunk(instance, 0, 0);
+            var outside = loader.loadChunk(instance, -1, 0);
+
+            //Comparison
+            assertTrue(future.isDone());
+            assertNotNull(future.join());
+            assertNull(outside.join());
+        }
+
+        @Test
+        void capture_KeepsBlockEntityNbt() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var nbt = (NBTCompound) new SNBTParser(new StringReader("{Text1:\"Magma\",Color:\"black\"}")).parse();
+
+            var chunk = new DynamicChunk(instance, 0, 0);
+            chunk.setBlock(3, 70, 5, Block.OAK_SIGN.withNbt(nbt));
+
+            //Capturing
+            var materialPalette = new MaterialPalette();
+            var biomePalette = new BiomePalette();
+            var beforeChunk = MagmaChunk.fromChunk(materialPalette, biomePalette, chunk);
+
+            //Writing
+            MagmaOutputStream mos = new MagmaOutputStream();
+            beforeChunk.write(mos);
+            mos.flush();
+
+            //Reading
+            var afterChunk = MagmaChunk.read(materialPalette, biomePalette, flipStream(mos));
+
+            //Comparison
+            var afterSection = afterChunk.getSections().get((byte) (70 / Chunk.CHUNK_SECTION_SIZE - chunk.getMinSection()));
+            assertNotNull(afterSection);
+
+            var sectionIndex = (short) MagmaUtils.getSectionIndex(MagmaSection.BLOCK_DIMENSION, 3, 70 % Chunk.CHUNK_SECTION_SIZE, 5);
+            assertEquals(nbt, afterSection.getBlockEntities().get(sectionIndex));
+
+            var block = afterSection.getBlock(materialPalette, sectionIndex).getBlock();
+            assertEquals(Block.OAK_SIGN.namespace(), block.namespace());
+            assertEquals(nbt, block.nbt());
+        }
+
+        @Test
+        void capture_LimitsInFlightChunks() {
+            //Setup
+            var instance = mock(Instance.class);
+            List<CompletableFuture<Chunk>> loads = new ArrayList<>();
+            when(instance.loadOptionalChunk(any())).thenAnswer(invocation -> {
+                CompletableFuture<Chunk> load = new CompletableFuture<>();
+                loads.add(load);
+                return load;
+            });
+
+            var capture = new MagmaCapture(instance, new Vec(0, 0, 0), new Vec(64, 0, 32));
+            capture.setInFlight(3);
+            capture.setTickBudget(Duration.ofSeconds(10));
+            capture.setExecutor(Runnable::run);
+
+            //Capturing
+            var future = capture.start(() -> null);
+            capture.tick();
+            assertEquals(3, loads.size());
+
+            capture.tick();
+            assertEquals(3, loads.size());
+
+            loads.get(0).complete(null);
+            capture.tick();
+            assertEquals(4, loads.size());
+
+            while(!future.isDone()) {
+                loads.forEach(load -> load.complete(null));
+                capture.tick();
+            }
+
+            //Comparison
+            assertEquals(capture.getTotalChunks(), loads.size());
+            assertEquals(capture.getTotalChunks(), capture.getProcessedChunks());
+            assertTrue(future.join().getPopulatedChunks().isEmpty());
+        }
+
+        @Test
+        void capture_StartsOneChunkWithoutBudget() {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.loadOptionalChunk(any())).thenReturn(new CompletableFuture<>());
+
+            var capture = new MagmaCapture(instance, new Vec(0, 0, 0), new Vec(64, 0, 32));
+            capture.setTickBudget(Duration.ZERO);
+
+            //Capturing
+            capture.start(() -> null);
+            capture.tick();
+            capture.tick();
+
+            //Comparison
+            verify(instance, times(2)).loadOptionalChunk(any());
+        }
+
+        @Test
+        void capture_FailedChunkCompletesExceptionally() {
+            //Setup
+            var instance = mock(Instance.class);
+            CompletableFuture<Chunk> load = new CompletableFuture<>();
+            when(instance.loadOptionalChunk(any())).thenReturn(load);
+
+            var capture = new MagmaCapture(instance, new Vec(0, 0, 0), new Vec(64, 0, 32));
+            capture.setInFlight(1);
+            capture.setExecutor(Runnable::run);
+
+            //Capturing
+            var future = capture.start(() -> null);
+            capture.tick();
+            load.completeExceptionally(new IllegalStateException("Chunk failed to load"));
+            capture.tick();
+
+            //Comparison
+            assertTrue(future.isCompletedExceptionally());
+            verify(instance, times(1)).loadOptionalChunk(any());
+        }
+
+        @Test
+        void prefetcher_PendingChunkNotBuiltTwice() {
+            //Setup
+            var instance = mock(Instance.class);
+            var loader = mock(MagmaLoader.class);
+            var chunk = mock(Chunk.class);
+            when(loader.getPopulatedIndex(anyInt(), anyInt())).thenReturn(0);
+            when(loader.buildChunk(instance, 1, 2)).thenReturn(chunk);
+
+            List<Runnable> tasks = new ArrayList<>();
+            var prefetcher = new MagmaPrefetcher(loader, instance);
+            prefetcher.setExecutor(tasks::add);
+
+            //Prefetching, the second request is still pending
+            prefetcher.prefetch(1, 2);
+            prefetcher.prefetch(1, 2);
+            assertEquals(1, tasks.size());
+
+            //Taking before it was built
+            var future = prefetcher.take(1, 2);
+            assertNotNull(future);
+            assertFalse(future.isDone());
+
+            tasks.forEach(Runnable::run);
+
+            //Comparison
+            assertSame(chunk, future.join());
+            verify(loader, times(1)).buildChunk(instance, 1, 2);
+            assertEquals(1, prefetcher.getHits());
+            assertEquals(0, prefetcher.getMisses());
+        }
+
+        @Test
+        void prefetcher_OnlyCountsRequestedChunks() {
+            //Setup
+            var instance = mock(Instance.class);
+            var loader = mock(MagmaLoader.class);
+            when(loader.getPopulatedIndex(anyInt(), anyInt())).thenReturn(0);
+            when(loader.buildChunk(any(), anyInt(), anyInt())).thenReturn(mock(Chunk.class));
+
+            var prefetcher = new MagmaPrefetcher(loader, instance);
+            prefetcher.setExecutor(Runnable::run);
+            prefetcher.setCapacity(1);
+
+            //Prefetching, the first chunk is dropped over capacity
+            prefetcher.prefetch(0, 0);
+            prefetcher.prefetch(1, 0);
+            assertEquals(1, prefetcher.getReadyChunks());
+
+            //Taking
+            assertNull(prefetcher.take(5, 5));
+            assertNull(prefetcher.take(0, 0));
+            assertNotNull(prefetcher.take(1, 0));
+
+            //Comparison
+            assertEquals(1, prefetcher.getHits());
+            assertEquals(1, prefetcher.getMisses());
+        }
+
+        @Test
+        void prefetcher_PendingChunksFillCapacity() {
+            //Setup
+            var instance = mock(Instance.class);
+            var loader = mock(MagmaLoader.class);
+            when(loader.getPopulatedIndex(anyInt(), anyInt())).thenReturn(0);
+            when(loader.buildChunk(any(), anyInt(), anyInt())).thenReturn(mock(Chunk.class));
+
+            Queue<Runnable> builds = new ArrayDeque<>();
+
+            var prefetcher = new MagmaPrefetcher(loader, instance);
+            prefetcher.setExecutor(builds::add);
+            prefetcher.setCapacity(1);
+
+            //Prefetching, the second chunk doesn't fit while the first one is building
+            prefetcher.prefetch(0, 0);
+            prefetcher.prefetch(1, 0);
+            assertEquals(1, builds.size());
+
+            //Building, the first chunk can be dropped for new ones now
+            builds.poll().run();
+            prefetcher.prefetch(1, 0);
+            assertEquals(1, builds.size());
+
+            //Comparison
+            assertNull(prefetcher.take(0, 0));
+            assertNotNull(prefetcher.take(1, 0));
+            assertEquals(1, prefetcher.getMisses());
+        }
+
+        @Test
+        void prefetcher_DefaultsToLoaderExecutor() {
+            //Setup
+            var loader = mock(MagmaLoader.class);
+            var prefetcher = new MagmaPrefetcher(loader, mock(Instance.class));
+            Executor executor = Runnable::run;
+
+            //Comparison
+            assertSame(MagmaReader.defaultExecutor(), prefetcher.getExecutor());
+
+            when(loader.getExecutor()).thenReturn(executor);
+            assertSame(executor, prefetcher.getExecutor());
+        }
+
+        @Test
+        void warmUp_BoundedConcurrency() {
+            //Setup
+            var instance = mock(Instance.class);
+            List<CompletableFuture<Chunk>> loads = new ArrayList<>();
+            when(instance.loadChunk(anyInt(), anyInt())).thenAnswer(invocation -> {
+                CompletableFuture<Chunk> load = new CompletableFuture<>();
+                loads.add(load);
+                return load;
+            });
+
+            var region = generateEmptyRegion(4, 4);
+            region.getPopulatedChunks().clear(5);
+            var warmUp = new MagmaWarmUp(instance, region, 2, 2, 3);
+
+            //Warming up, only as many chunks as allowed are loading at once
+            var future = warmUp.start();
+            assertEquals(3, loads.size());
+
+            for(int i = 0; i < loads.size(); i++) {
+                assertFalse(future.isDone());
+                assertTrue(loads.size() - i <= 3);
+                loads.get(i).complete(null);
+            }
+
+            //Comparison
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+            assertEquals(15, loads.size());
+            assertEquals(warmUp.getTotalChunks(), warmUp.getLoadedChunks());
+        }
+
+        @Test
+        void warmUp_LoadedChunksCompleteImmediately() {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.loadChunk(anyInt(), anyInt())).thenReturn(CompletableFuture.completedFuture(null));
+
+            var warmUp = new MagmaWarmUp(instance, generateEmptyRegion(4, 4), 0, 0, 2);
+
+            //Warming up
+            var future = warmUp.start();
+
+            //Comparison
+            assertTrue(future.isDone());
+            verify(instance, times(16)).loadChunk(anyInt(), anyInt());
+            assertThrows(IllegalStateException.class, warmUp::start);
+        }
+
+        @Test
+        void warmUp_FailedChunkCompletesExceptionally() {
+            //Setup
+            var instance = mock(Instance.class);
+            List<CompletableFuture<Chunk>> loads = new ArrayList<>();
+            when(instance.loadChunk(anyInt(), anyInt())).thenAnswer(invocation -> {
+                CompletableFuture<Chunk> load = new CompletableFuture<>();
+                loads.add(load);
+                return load;
+            });
+
+            var warmUp = new MagmaWarmUp(instance, generateEmptyRegion(4, 4), 0, 0, 2);
+
+            //Warming up
+            var future = warmUp.start();
+            loads.get(0).completeExceptionally(new IllegalStateException("Chunk failed to load"));
+            loads.get(1).complete(null);
+
+            //Comparison
+            assertTrue(future.isCompletedExceptionally());
+            assertEquals(2, loads.size());
+            assertEquals(1, warmUp.getLoadedChunks());
+        }
+
+        MagmaRegion generateEmptyRegion(int xSize, int zSize) {
+            var populatedChunks = new BitSet(xSize * zSize);
+            populatedChunks.set(0, xSize * zSize);
+            return new MagmaRegion(xSize, zSize, populatedChunks, new MaterialPalette(), new BiomePalette(), new Long2ObjectOpenHashMap<>());
+        }
+
+        @Test
+        void loader_ReleasesAfterLoad() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var loader = createLoader(MagmaFormat.INDEXED);
+            loader.setRetention(RetentionPolicy.RELEASE_AFTER_LOAD);
+            var region = loader.getRegion();
+
+            //Loading
+            assertNotNull(loader.loadChunk(instance, 0, 0).join());
+            assertNotNull(loader.loadChunk(instance, 1, 0).join());
+            assertTrue(region.getChunks().isEmpty());
+
+            //Saving doesn't decode them for good
+            loader.saveInstance(instance).join();
+            assertTrue(region.getChunks().isEmpty());
+        }
+
+        @Test
+        void loader_SaveReopensRegion() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var loader = createLoader(MagmaFormat.INDEXED);
+            loader.setRetention(RetentionPolicy.RELEASE_AFTER_LOAD);
+            loader.setCompression(CompressionOptions.LZ4);
+            var region = loader.getRegion();
+
+            //Saving
+            loader.saveInstance(instance).join();
+
+            //Loading, decoded from the new file
+            assertSame(CompressionOptions.LZ4.codec(), region.getCodec());
+            assertNotNull(loader.loadChunk(instance, 0, 0).join());
+            assertTrue(region.getChunks().isEmpty());
+        }
+
+        @Test
+        void loader_LruKeepsRecentChunks() throws Exception {
+            //Setup
+            var instance = mock(Instance.class);
+            when(instance.getDimensionType()).thenReturn(DimensionType.OVERWORLD);
+
+            var loader = createLoader(MagmaFormat.INDEXED);
+            var region = loader.getRegion();
+
+            //Loading, one byte only fits the chunk that was just loaded
+            loader.setRetention(RetentionPolicy.lru(1));
+            assertNotNull(loader.loadChunk(instance, 0, 0).join());
+            assertNotNull(loader.loadChunk(instance, 1, 0).join());
+
+            //Comparison
+            assertEquals(1, region.getChunks().size());
+            assertTrue(region.getChunks().containsKey(MagmaUtils.getMagmaChunkIndex(1, 0, region.getXSize())));
+
+            //Loading, everything fits
+            loader.setRetention(RetentionPolicy.lru(Long.MAX_VALUE));
+            assertNotNull(loader.loadChunk(instance, 0, 0).join());
+
+            //Comparison
+            assertEquals(2, region.getChunks().size());
+        }
+
+        MagmaLoader createLoader(int flags) throws IOException {
+            var region = new ComplexTests().generateRegion(new MaterialPalette(), new BiomePalette());
+
+            var path = Files.createTempFile("region", "." + MagmaUtils.FORMAT_NAME);
+            assertTrue(MagmaWriter.write(region, path, flags));
+
+            var loader = MagmaLoader.create(path).join();
+            assertNotNull(loader);
+            return loader;
+        }
+
+    }
+
     private MagmaInputStream flipStream(MagmaOutputStream mos) {
         var intermediateArr = mos.toByteArray();
         assertNotNull(intermediateArr);